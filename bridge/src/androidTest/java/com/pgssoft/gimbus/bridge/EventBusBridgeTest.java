@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus.bridge;
+
+import android.support.annotation.NonNull;
+import android.test.InstrumentationTestCase;
+
+import com.pgssoft.gimbus.Consumer;
+import com.pgssoft.gimbus.EventBus;
+import com.pgssoft.gimbus.EventCodec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventBusBridge tests, two buses bridged over a loopback socket.
+ */
+public class EventBusBridgeTest extends InstrumentationTestCase {
+
+    static final EventCodec STRING_CODEC = new EventCodec() {
+        @Override
+        public boolean canEncode(@NonNull Object event) {
+            return event instanceof String;
+        }
+
+        @Override
+        public void encode(@NonNull Object event, @NonNull DataOutput output) throws IOException {
+            output.writeUTF((String) event);
+        }
+
+        @NonNull
+        @Override
+        public Object decode(@NonNull DataInput input) throws IOException {
+            return input.readUTF();
+        }
+    };
+
+    public void testBridge() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        Socket acceptedSocket = serverSocket.accept();
+        serverSocket.close();
+
+        EventBus busA = new EventBus();
+        EventBus busB = new EventBus();
+        EventBusBridge bridgeA = EventBusBridge.create(busA, clientSocket, STRING_CODEC, String.class);
+        EventBusBridge bridgeB = EventBusBridge.create(busB, acceptedSocket, STRING_CODEC, String.class);
+
+        final List<String> eventsA = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> eventsB = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch receivedA = new CountDownLatch(2);
+        final CountDownLatch receivedB = new CountDownLatch(2);
+        busA.subscribe(String.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<String>() {
+            @Override
+            public void accept(@NonNull String event) {
+                eventsA.add(event);
+                receivedA.countDown();
+            }
+        });
+        busB.subscribe(String.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<String>() {
+            @Override
+            public void accept(@NonNull String event) {
+                eventsB.add(event);
+                receivedB.countDown();
+            }
+        });
+
+        busA.post("from A");
+        busB.post("from B");
+        assertTrue(receivedA.await(10, TimeUnit.SECONDS));
+        assertTrue(receivedB.await(10, TimeUnit.SECONDS));
+
+        //give a possible echo some time to arrive
+        Thread.sleep(200);
+
+        //both buses got the local and the remote event, once
+        assertEquals(2, eventsA.size());
+        assertTrue(eventsA.contains("from A") && eventsA.contains("from B"));
+        assertEquals(2, eventsB.size());
+        assertTrue(eventsB.contains("from A") && eventsB.contains("from B"));
+
+        //received events are not written back
+        assertEquals(1, bridgeA.getConnection().getWrittenEventCount());
+        assertEquals(1, bridgeB.getConnection().getWrittenEventCount());
+
+        //closing one side closes the other
+        bridgeA.close();
+        for (int i = 0; i < 100 && !bridgeB.getConnection().isClosed(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(bridgeB.getConnection().isClosed());
+
+        //a closed bridge no longer forwards
+        busB.post("after close");
+        Thread.sleep(100);
+        assertEquals(1, bridgeB.getConnection().getWrittenEventCount());
+    }
+}
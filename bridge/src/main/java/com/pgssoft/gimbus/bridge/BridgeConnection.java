@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus.bridge;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.pgssoft.gimbus.EventCodec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One end of a bidirectional event stream, over any pair of connected streams, e.g. of a Socket.
+ * <p/>
+ * Events are written in batches, by a writer thread. Every batch takes all events queued since the
+ * previous one, so under load thousands of small events are written with a few write() calls, while
+ * a single event is written at once. Events are read by a reader thread, and passed to the Receiver.
+ * <p/>
+ * Frame format (DataOutput encoding):
+ * <pre>
+ * int    length of the rest of the frame, in bytes
+ * int    number of events
+ *   int    length of the event, in bytes
+ *   byte[] the event, written by the EventCodec
+ * </pre>
+ * A batch that would not fit in {@link #MAX_FRAME_LENGTH} is split into more frames. An event that can't
+ * be encoded or decoded, or alone does not fit in a frame, is skipped, the other events are still passed.
+ * <p/>
+ * At most {@link #MAX_QUEUED_EVENTS} events wait for the writer, events sent when the queue is full,
+ * e.g. as the peer does not read, are dropped and counted, see {@link #getDroppedEventCount()}.
+ */
+public final class BridgeConnection implements Closeable {
+
+    /**
+     * Receives the events read from the connection, in the reader thread.
+     */
+    public interface Receiver {
+
+        void onEvent(@NonNull Object event);
+
+        /**
+         * Called once, when the connection is closed, by any side.
+         *
+         * @param cause @Nullable the error that closed the connection, null if closed with {@link #close()}.
+         */
+        void onClosed(@Nullable IOException cause);
+    }
+
+    /**
+     * Frames larger than this are considered corrupted, and close the connection.
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Maximum number of events written in one frame.
+     */
+    public static final int MAX_BATCH_SIZE = 4096;
+
+    /**
+     * Maximum number of events waiting for the writer thread.
+     */
+    public static final int MAX_QUEUED_EVENTS = 64 * 1024;
+
+    public BridgeConnection(@NonNull InputStream input, @NonNull OutputStream output, @NonNull Closeable transport,
+                            @NonNull EventCodec codec, @NonNull Receiver receiver) {
+        mInput = input;
+        mOutput = output;
+        mTransport = transport;
+        mCodec = codec;
+        mReceiver = receiver;
+    }
+
+    /**
+     * Starts the reader and the writer threads.
+     *
+     * @param name @NonNull name of the connection, for the thread names.
+     */
+    public void start(@NonNull String name) {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, WRITER_THREAD_NAME + name);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, READER_THREAD_NAME + name);
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * Queues the event to be written, returns immediately.
+     * Events queued after the connection was closed are dropped, and the events sent while
+     * {@link #MAX_QUEUED_EVENTS} are waiting already.
+     *
+     * @param event @NonNull event accepted by the codec.
+     */
+    public void send(@NonNull Object event) {
+        if (!mClosed.get() && !mOutgoing.offer(event)) {
+            mDroppedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * Closes the connection, events not written yet are dropped. Can be called many times, from any thread.
+     */
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * @return number of events written so far.
+     */
+    public long getWrittenEventCount() {
+        return mWrittenEvents.get();
+    }
+
+    /**
+     * @return number of frames written so far, each frame is one write() to the transport.
+     */
+    public long getWrittenFrameCount() {
+        return mWrittenFrames.get();
+    }
+
+    /**
+     * @return number of events read, and passed to the Receiver, so far.
+     */
+    public long getReadEventCount() {
+        return mReadEvents.get();
+    }
+
+    /**
+     * @return number of events skipped, as the codec failed to encode or decode them, or they were larger than a frame.
+     */
+    public long getSkippedEventCount() {
+        return mSkippedEvents.get();
+    }
+
+    /**
+     * @return number of events dropped, as the queue of the events to write was full.
+     */
+    public long getDroppedEventCount() {
+        return mDroppedEvents.get();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // implementation
+
+    static final String WRITER_THREAD_NAME = "EventBus.Bridge.Writer #";
+    static final String READER_THREAD_NAME = "EventBus.Bridge.Reader #";
+
+    /**
+     * Queued to wake up the writer thread when closed.
+     */
+    static final Object CLOSED = new Object();
+
+    @NonNull
+    final InputStream mInput;
+    @NonNull
+    final OutputStream mOutput;
+    @NonNull
+    final Closeable mTransport;
+    @NonNull
+    final EventCodec mCodec;
+    @NonNull
+    final Receiver mReceiver;
+
+    final BlockingQueue<Object> mOutgoing = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+    final AtomicBoolean mClosed = new AtomicBoolean();
+
+    /**
+     * The frame length limit, of both the written and the read frames, MAX_FRAME_LENGTH except in tests.
+     */
+    int mMaxFrameLength = MAX_FRAME_LENGTH;
+
+    final AtomicLong mWrittenEvents = new AtomicLong();
+    final AtomicLong mWrittenFrames = new AtomicLong();
+    final AtomicLong mReadEvents = new AtomicLong();
+    final AtomicLong mSkippedEvents = new AtomicLong();
+    final AtomicLong mDroppedEvents = new AtomicLong();
+
+    void close(@Nullable IOException cause) {
+        if (mClosed.compareAndSet(false, true)) {
+            mOutgoing.clear();
+            //if producers filled the queue meanwhile, the writer takes an event, and sees mClosed after it
+            mOutgoing.offer(CLOSED);
+            try {
+                mTransport.close();
+            } catch (IOException ignored) {
+            }
+            mReceiver.onClosed(cause);
+        }
+    }
+
+    void writeLoop() {
+        //both buffers are reused for all frames, they grow to the largest frame written
+        final FrameBuffer frame = new FrameBuffer();
+        final FrameBuffer event = new FrameBuffer();
+        final DataOutputStream frameOutput = new DataOutputStream(frame);
+        final DataOutputStream eventOutput = new DataOutputStream(event);
+        final List<Object> batch = new ArrayList<>();
+        try {
+            while (!mClosed.get()) {
+                //wait for the first event, then take all other queued, they are written together
+                batch.add(mOutgoing.take());
+                mOutgoing.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                startFrame(frame, frameOutput);
+                int count = 0;
+                for (Object item : batch) {
+                    if (item == CLOSED) {
+                        return;
+                    }
+                    event.reset();
+                    try {
+                        mCodec.encode(item, eventOutput);
+                    } catch (IOException | RuntimeException e) {
+                        mSkippedEvents.incrementAndGet();
+                        continue;
+                    }
+                    //the frame length excludes its own int, the event takes its length int and its bytes
+                    final int eventLength = 4 + event.size();
+                    if (4 + eventLength > mMaxFrameLength) {
+                        mSkippedEvents.incrementAndGet();
+                        continue;
+                    }
+                    if (frame.size() - 4 + eventLength > mMaxFrameLength) {
+                        writeFrame(frame, count);
+                        startFrame(frame, frameOutput);
+                        count = 0;
+                    }
+                    frameOutput.writeInt(event.size());
+                    event.writeTo(frameOutput);
+                    count++;
+                }
+                batch.clear();
+                if (count > 0) {
+                    writeFrame(frame, count);
+                }
+            }
+        } catch (InterruptedException e) {
+            close(null);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    static void startFrame(@NonNull FrameBuffer frame, @NonNull DataOutputStream frameOutput) throws IOException {
+        frame.reset();
+        frameOutput.writeInt(0); //length, set by writeFrame()
+        frameOutput.writeInt(0); //count, set by writeFrame()
+    }
+
+    void writeFrame(@NonNull FrameBuffer frame, int count) throws IOException {
+        frame.setInt(0, frame.size() - 4);
+        frame.setInt(4, count);
+        mOutput.write(frame.buffer(), 0, frame.size());
+        mOutput.flush();
+        mWrittenFrames.incrementAndGet();
+        mWrittenEvents.addAndGet(count);
+    }
+
+    void readLoop() {
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(mInput, 64 * 1024));
+        byte[] payload = new byte[8 * 1024];
+        try {
+            while (!mClosed.get()) {
+                final int length = input.readInt();
+                if (length < 4 || length > mMaxFrameLength) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                input.readFully(payload, 0, length);
+
+                final ByteArrayInputStream frameStream = new ByteArrayInputStream(payload, 0, length);
+                final DataInputStream frame = new DataInputStream(frameStream);
+                final int count = frame.readInt();
+                for (int i = 0; i < count; i++) {
+                    final int eventLength = frame.readInt();
+                    final int eventEnd = length - frameStream.available() + eventLength;
+                    if (eventLength < 0 || eventEnd > length) {
+                        throw new IOException("Invalid event length " + eventLength);
+                    }
+                    Object event = null;
+                    try {
+                        event = mCodec.decode(frame);
+                    } catch (IOException | RuntimeException e) {
+                        mSkippedEvents.incrementAndGet();
+                    }
+                    //position the stream at the next event, no matter how much the codec have read
+                    frameStream.reset();
+                    //noinspection ResultOfMethodCallIgnored
+                    frameStream.skip(eventEnd);
+                    if (event != null) {
+                        mReadEvents.incrementAndGet();
+                        mReceiver.onEvent(event);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            close(mClosed.get() ? null : e);
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream with access to its buffer, so it can be patched, and written with no copy.
+     */
+    static final class FrameBuffer extends ByteArrayOutputStream {
+
+        FrameBuffer() {
+            super(8 * 1024);
+        }
+
+        @NonNull
+        byte[] buffer() {
+            return buf;
+        }
+
+        void setInt(int position, int value) {
+            buf[position] = (byte) (value >>> 24);
+            buf[position + 1] = (byte) (value >>> 16);
+            buf[position + 2] = (byte) (value >>> 8);
+            buf[position + 3] = (byte) value;
+        }
+    }
+}
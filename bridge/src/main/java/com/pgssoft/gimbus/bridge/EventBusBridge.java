@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus.bridge;
+
+import android.net.LocalSocket;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.pgssoft.gimbus.Consumer;
+import com.pgssoft.gimbus.EventBus;
+import com.pgssoft.gimbus.EventCodec;
+import com.pgssoft.gimbus.Predicate;
+import com.pgssoft.gimbus.Subscription;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects an EventBus with an EventBus of other process, over a local socket.
+ * <p/>
+ * Events of the forwarded types, dispatched in the local bus, are written to the connection, and events
+ * read from the connection are sent to the local bus. Both sides choose the types they forward, and
+ * have to use compatible codecs. Events received from the other side are not forwarded back.
+ * <p/>
+ * Received events are sent with {@link EventBus#send(Object)} in the reader thread of the bridge,
+ * so DELIVER_IN_DISPATCHER_THREAD handlers are called in this thread.
+ * <p/>
+ * Usage, in the both processes:
+ * <pre>
+ * EventBusBridge bridge = EventBusBridge.create(eventBus, localSocket, codec, SyncFinished.class);
+ * ...
+ * bridge.close();
+ * </pre>
+ */
+public final class EventBusBridge implements Closeable {
+
+    /**
+     * Bridges the bus over a connected TCP socket, usually a loopback one.
+     */
+    @NonNull
+    public static EventBusBridge create(@NonNull EventBus eventBus, @NonNull Socket socket, @NonNull EventCodec codec,
+                                        @NonNull Class<?>... forwardedEventTypes) throws IOException {
+        //events are small, and already batched, do not wait for more data
+        socket.setTcpNoDelay(true);
+        return new EventBusBridge(eventBus, socket.getInputStream(), socket.getOutputStream(), socket, codec, forwardedEventTypes);
+    }
+
+    /**
+     * Bridges the bus over a connected Unix domain socket.
+     */
+    @NonNull
+    public static EventBusBridge create(@NonNull EventBus eventBus, @NonNull final LocalSocket socket, @NonNull EventCodec codec,
+                                        @NonNull Class<?>... forwardedEventTypes) throws IOException {
+        //Note: LocalSocket is not Closeable before API 17
+        return new EventBusBridge(eventBus, socket.getInputStream(), socket.getOutputStream(), new Closeable() {
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        }, codec, forwardedEventTypes);
+    }
+
+    /**
+     * Bridges the bus over any connected streams, and starts the bridge.
+     *
+     * @param transport @NonNull closes the streams, called when the bridge is closed.
+     */
+    public EventBusBridge(@NonNull EventBus eventBus, @NonNull InputStream input, @NonNull OutputStream output,
+                          @NonNull Closeable transport, @NonNull final EventCodec codec, @NonNull Class<?>... forwardedEventTypes) {
+        mEventBus = eventBus;
+        mConnection = new BridgeConnection(input, output, transport, codec, new BridgeConnection.Receiver() {
+            @Override
+            public void onEvent(@NonNull Object event) {
+                mReceivedEvent = event;
+                try {
+                    mEventBus.send(event);
+                } finally {
+                    mReceivedEvent = null;
+                }
+            }
+
+            @Override
+            public void onClosed(@Nullable IOException cause) {
+                closeSubscriptions();
+            }
+        });
+
+        //evaluated in the dispatcher thread, events that can't be written are not even passed to the consumer
+        Predicate<Object> filter = new Predicate<Object>() {
+            @Override
+            public boolean test(@NonNull Object event) {
+                //identity check, the event being received is the only one that should not be written back
+                return event != mReceivedEvent && codec.canEncode(event);
+            }
+        };
+        Consumer<Object> consumer = new Consumer<Object>() {
+            @Override
+            public void accept(@NonNull Object event) {
+                mConnection.send(event);
+            }
+        };
+        for (Class<?> eventType : forwardedEventTypes) {
+            mSubscriptions.add(eventBus.subscribe(eventType, EventBus.DELIVER_IN_DISPATCHER_THREAD, null, filter, consumer));
+        }
+        mConnection.start(String.valueOf(sCount.getAndIncrement()));
+    }
+
+    /**
+     * @return @NonNull the underlying connection, e.g. for its statistics.
+     */
+    @NonNull
+    public BridgeConnection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Stops forwarding, and closes the connection. Can be called many times, from any thread.
+     */
+    @Override
+    public void close() {
+        closeSubscriptions();
+        mConnection.close();
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // implementation
+
+    static final AtomicInteger sCount = new AtomicInteger(1);
+
+    @NonNull
+    final EventBus mEventBus;
+
+    @NonNull
+    final BridgeConnection mConnection;
+
+    final List<Subscription> mSubscriptions = new ArrayList<>();
+
+    /**
+     * The event being sent to the local bus by the reader thread, it is not written back.
+     */
+    @Nullable
+    volatile Object mReceivedEvent;
+
+    void closeSubscriptions() {
+        synchronized (mSubscriptions) {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus.bridge;
+
+import com.pgssoft.gimbus.EventCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BridgeConnection tests, on the plain JVM, over a loopback socket.
+ */
+public class BridgeConnectionTest {
+
+    /**
+     * Encodes Strings, and fails on the ones starting with "!", on both sides.
+     */
+    static final EventCodec STRING_CODEC = new EventCodec() {
+        @Override
+        public boolean canEncode(Object event) {
+            return event instanceof String;
+        }
+
+        @Override
+        public void encode(Object event, DataOutput output) throws IOException {
+            if (((String) event).startsWith("!!")) {
+                throw new IOException("Not encodable");
+            }
+            output.writeUTF((String) event);
+        }
+
+        @Override
+        public Object decode(DataInput input) throws IOException {
+            String event = input.readUTF();
+            if (event.startsWith("!")) {
+                //the connection has to skip the event, and go on with the next one
+                throw new IOException("Not decodable");
+            }
+            return event;
+        }
+    };
+
+    static class TestReceiver implements BridgeConnection.Receiver {
+
+        final List<Object> events = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch closed = new CountDownLatch(1);
+        CountDownLatch received;
+        volatile IOException closeCause;
+
+        TestReceiver(int expected) {
+            received = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onEvent(Object event) {
+            events.add(event);
+            received.countDown();
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            closeCause = cause;
+            closed.countDown();
+        }
+    }
+
+    ServerSocket mServerSocket;
+    Socket mClientSocket;
+    Socket mAcceptedSocket;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mClientSocket = new Socket(InetAddress.getLoopbackAddress(), mServerSocket.getLocalPort());
+        mAcceptedSocket = mServerSocket.accept();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mClientSocket.close();
+        mAcceptedSocket.close();
+        mServerSocket.close();
+    }
+
+    BridgeConnection connect(Socket socket, TestReceiver receiver, String name) throws IOException {
+        return connect(socket, receiver, name, BridgeConnection.MAX_FRAME_LENGTH);
+    }
+
+    BridgeConnection connect(Socket socket, TestReceiver receiver, String name, int maxFrameLength) throws IOException {
+        BridgeConnection connection = new BridgeConnection(socket.getInputStream(), socket.getOutputStream(),
+                socket, STRING_CODEC, receiver);
+        connection.mMaxFrameLength = maxFrameLength;
+        connection.start(name);
+        return connection;
+    }
+
+    static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        final int count = 10000;
+        TestReceiver clientReceiver = new TestReceiver(0);
+        TestReceiver serverReceiver = new TestReceiver(count);
+        BridgeConnection client = connect(mClientSocket, clientReceiver, "client");
+        BridgeConnection server = connect(mAcceptedSocket, serverReceiver, "server");
+
+        for (int i = 0; i < count; i++) {
+            client.send("event " + i);
+        }
+        assertTrue(serverReceiver.received.await(10, TimeUnit.SECONDS));
+
+        //all events, in order
+        assertEquals(count, serverReceiver.events.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("event " + i, serverReceiver.events.get(i));
+        }
+        assertEquals(count, client.getWrittenEventCount());
+        assertEquals(count, server.getReadEventCount());
+        //a burst is written in batches, not event by event
+        assertTrue(client.getWrittenFrameCount() < count / 10);
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testBothDirections() throws Exception {
+        TestReceiver clientReceiver = new TestReceiver(1);
+        TestReceiver serverReceiver = new TestReceiver(1);
+        BridgeConnection client = connect(mClientSocket, clientReceiver, "client");
+        BridgeConnection server = connect(mAcceptedSocket, serverReceiver, "server");
+
+        client.send("ping");
+        assertTrue(serverReceiver.received.await(10, TimeUnit.SECONDS));
+        server.send("pong");
+        assertTrue(clientReceiver.received.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Collections.<Object>singletonList("ping"), serverReceiver.events);
+        assertEquals(Collections.<Object>singletonList("pong"), clientReceiver.events);
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testSkippedEvents() throws Exception {
+        TestReceiver clientReceiver = new TestReceiver(0);
+        TestReceiver serverReceiver = new TestReceiver(2);
+        BridgeConnection client = connect(mClientSocket, clientReceiver, "client");
+        BridgeConnection server = connect(mAcceptedSocket, serverReceiver, "server");
+
+        client.send("a");
+        client.send("!!not encoded");
+        client.send("!not decoded");
+        client.send("b");
+        assertTrue(serverReceiver.received.await(10, TimeUnit.SECONDS));
+
+        //the failed events are skipped, the others are passed, and the connection stays open
+        assertEquals(2, serverReceiver.events.size());
+        assertEquals("a", serverReceiver.events.get(0));
+        assertEquals("b", serverReceiver.events.get(1));
+        assertEquals(1, client.getSkippedEventCount());
+        assertEquals(1, server.getSkippedEventCount());
+        assertTrue(!client.isClosed() && !server.isClosed());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testFrameLengthLimit() throws Exception {
+        final int maxFrameLength = 1024;
+        final int count = 100;
+        TestReceiver clientReceiver = new TestReceiver(0);
+        TestReceiver serverReceiver = new TestReceiver(count + 1);
+        BridgeConnection client = connect(mClientSocket, clientReceiver, "client", maxFrameLength);
+        BridgeConnection server = connect(mAcceptedSocket, serverReceiver, "server", maxFrameLength);
+
+        //a burst of events larger than a frame together, and one event larger than a frame alone
+        for (int i = 0; i < count; i++) {
+            client.send(i + repeat('x', 200));
+        }
+        client.send(repeat('y', 2 * maxFrameLength));
+        client.send("last");
+        assertTrue(serverReceiver.received.await(10, TimeUnit.SECONDS));
+
+        //the batch is split into frames the reader accepts, the large event is skipped
+        assertEquals(count + 1, serverReceiver.events.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + repeat('x', 200), serverReceiver.events.get(i));
+        }
+        assertEquals("last", serverReceiver.events.get(count));
+        assertEquals(1, client.getSkippedEventCount());
+        assertTrue(client.getWrittenFrameCount() >= count * 200 / maxFrameLength);
+        assertTrue(!client.isClosed() && !server.isClosed());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception {
+        //not started, nothing is written
+        BridgeConnection client = new BridgeConnection(mClientSocket.getInputStream(), mClientSocket.getOutputStream(),
+                mClientSocket, STRING_CODEC, new TestReceiver(0));
+        for (int i = 0; i < BridgeConnection.MAX_QUEUED_EVENTS + 10; i++) {
+            client.send("event");
+        }
+        assertEquals(BridgeConnection.MAX_QUEUED_EVENTS, client.mOutgoing.size());
+        assertEquals(10, client.getDroppedEventCount());
+        client.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        TestReceiver clientReceiver = new TestReceiver(0);
+        TestReceiver serverReceiver = new TestReceiver(0);
+        BridgeConnection client = connect(mClientSocket, clientReceiver, "client");
+        BridgeConnection server = connect(mAcceptedSocket, serverReceiver, "server");
+
+        client.close();
+        assertTrue(client.isClosed());
+        assertTrue(clientReceiver.closed.await(10, TimeUnit.SECONDS));
+        assertNull(clientReceiver.closeCause);
+
+        //the other side is closed, when the stream ends
+        assertTrue(serverReceiver.closed.await(10, TimeUnit.SECONDS));
+        assertTrue(server.isClosed());
+
+        //sending to a closed connection is ignored
+        client.send("ignored");
+        server.send("ignored");
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Minimal micro-benchmark harness for the instrumentation benchmarks.
+ * <p/>
+ * JMH can not drive code that depends on android.os, so this does the bare minimum JMH would:
+ * warm-up rounds, measured rounds, time per operation, and allocations per operation as reported
+ * by the runtime allocation counters (counted for the calling thread only).
+ * <p/>
+ * Results are written to logcat with the {@link #TAG} tag, filter with "adb logcat -s gimBUS.Benchmark".
+ * The device, API level and number of cores are written before the first result, quote them with the numbers.
+ */
+@SuppressWarnings("deprecation")
+/*package*/ final class Benchmark {
+
+    static final String TAG = "gimBUS.Benchmark";
+
+    static final int WARMUP_ROUNDS = 3;
+    static final int MEASURED_ROUNDS = 5;
+
+    static boolean sEnvironmentReported = false;
+
+    /**
+     * One measured operation. The operation is invoked {@code operationsPerRound} times per round.
+     */
+    interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * Result of the benchmark, best (lowest) round wins, like in JMH "ss" mode.
+     */
+    static final class Result {
+        final String name;
+        final double nanosPerOperation;
+        final double allocationsPerOperation;
+        final double bytesPerOperation;
+
+        Result(String name, double nanosPerOperation, double allocationsPerOperation, double bytesPerOperation) {
+            this.name = name;
+            this.nanosPerOperation = nanosPerOperation;
+            this.allocationsPerOperation = allocationsPerOperation;
+            this.bytesPerOperation = bytesPerOperation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-48s %12.1f ns/op %8.2f allocs/op %10.1f B/op",
+                    name, nanosPerOperation, allocationsPerOperation, bytesPerOperation);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    static Result measure(String name, int operationsPerRound, Operation operation) throws Exception {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < operationsPerRound; i++) {
+                operation.run(i);
+            }
+        }
+
+        double bestNanos = Double.MAX_VALUE;
+        double bestAllocations = Double.MAX_VALUE;
+        double bestBytes = Double.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            for (int i = 0; i < operationsPerRound; i++) {
+                operation.run(i);
+            }
+            long elapsed = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+
+            bestNanos = Math.min(bestNanos, (double) elapsed / operationsPerRound);
+            bestAllocations = Math.min(bestAllocations, (double) Debug.getThreadAllocCount() / operationsPerRound);
+            bestBytes = Math.min(bestBytes, (double) Debug.getThreadAllocSize() / operationsPerRound);
+        }
+
+        Result result = new Result(name, bestNanos, bestAllocations, bestBytes);
+        reportEnvironment();
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Reports a throughput figure measured by the caller, for multi threaded benchmarks where
+     * per-thread allocation counters make no sense.
+     */
+    static void reportThroughput(String name, long operations, long elapsedNanos) {
+        reportEnvironment();
+        Log.i(TAG, String.format(Locale.US, "%-48s %12.0f ops/s (%d ops in %d ms)",
+                name, operations * 1e9 / Math.max(1, elapsedNanos), operations, elapsedNanos / 1000000));
+    }
+
+    /**
+     * Writes the device the numbers come from, once per process.
+     */
+    static synchronized void reportEnvironment() {
+        if (!sEnvironmentReported) {
+            sEnvironmentReported = true;
+            Log.i(TAG, String.format(Locale.US, "%s %s, API %d, %d cores", Build.MANUFACTURER, Build.MODEL,
+                    Build.VERSION.SDK_INT, Runtime.getRuntime().availableProcessors()));
+        }
+    }
+}
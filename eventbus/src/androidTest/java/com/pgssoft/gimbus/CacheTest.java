@@ -10,18 +10,32 @@ package com.pgssoft.gimbus;
 import com.pgssoft.gimbus.mocks.TestEvent1;
 import com.pgssoft.gimbus.mocks.TestEvent2;
 import com.pgssoft.gimbus.mocks.TestEvent3;
+import com.pgssoft.gimbus.mocks.TestFilteringSubscriber;
 import com.pgssoft.gimbus.mocks.TestInterfaceEvent1;
+import com.pgssoft.gimbus.mocks.TestKeyedEvent;
+import com.pgssoft.gimbus.mocks.TestRateLimitedSubscriber;
 import com.pgssoft.gimbus.mocks.TestSubscriber1;
 import com.pgssoft.gimbus.mocks.TestSubscriber2;
 
+import android.support.annotation.NonNull;
+
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit tests for the Cache class.
@@ -171,6 +185,225 @@ public class CacheTest extends TestCase {
         executor.awaitTermination(15, TimeUnit.SECONDS);
     }
 
+    public void testPerKeyLoading() throws Exception {
+        final ClassKeyedCache<String> cache = new ClassKeyedCache<>();
+        final CountDownLatch slowLoadStarted = new CountDownLatch(1);
+        final CountDownLatch slowLoadRelease = new CountDownLatch(1);
+        final AtomicInteger slowLoads = new AtomicInteger();
+        final ClassKeyedCache.Loader<String> loader = new ClassKeyedCache.Loader<String>() {
+            @NonNull
+            @Override
+            public String load(@NonNull Class<?> key) {
+                if (key == TestEvent1.class) {
+                    slowLoads.incrementAndGet();
+                    slowLoadStarted.countDown();
+                    try {
+                        slowLoadRelease.await(15, TimeUnit.SECONDS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                return key.getName();
+            }
+        };
+
+        //1. many threads ask for the same, slowly loaded key
+        final int NUM_THREADS = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return cache.get(TestEvent1.class, loader);
+                }
+            }));
+        }
+        assertTrue(slowLoadStarted.await(15, TimeUnit.SECONDS));
+
+        //2. other keys are loaded and read while the slow one is still in progress
+        assertEquals(TestEvent2.class.getName(), cache.get(TestEvent2.class, loader));
+        assertEquals(TestEvent2.class.getName(), cache.get(TestEvent2.class, loader));
+
+        //3. all waiting threads get the one loaded value
+        slowLoadRelease.countDown();
+        for (Future<String> result : results) {
+            assertEquals(TestEvent1.class.getName(), result.get(15, TimeUnit.SECONDS));
+        }
+        assertEquals(1, slowLoads.get());
+        assertEquals(0, cache.mLoading.size());
+        executor.shutdown();
+
+        //4. failed load is reported to the caller, and not cached
+        try {
+            cache.get(TestEvent3.class, new ClassKeyedCache.Loader<String>() {
+                @NonNull
+                @Override
+                public String load(@NonNull Class<?> key) {
+                    throw new IllegalStateException("test");
+                }
+            });
+            fail("Should have throw");
+        } catch (IllegalStateException expected) {
+            assertEquals("test", expected.getMessage());
+        }
+        assertNull(cache.get(TestEvent3.class));
+        assertEquals(0, cache.mLoading.size());
+    }
+
+    public void testBoundedCacheAndEviction() throws Exception {
+        Cache.mEventClassHierarchyCache.setMaxSize(2);
+        EventBus.setMetadataCacheStatisticsEnabled(true);
+        try {
+            CacheStatistics before = EventBus.getEventClassCacheStatistics();
+
+            //1. the oldest entry should be evicted when the bound is exceeded
+            Cache.getEventClasses(new TestEvent1());
+            Cache.getEventClasses(new TestEvent2());
+            Cache.getEventClasses(new TestEvent2());
+            Cache.getEventClasses(new TestEvent3());
+
+            CacheStatistics after = EventBus.getEventClassCacheStatistics();
+            assertEquals(1, after.evictionCount - before.evictionCount);
+            assertEquals(1, after.hitCount - before.hitCount);
+            assertEquals(3, after.missCount - before.missCount);
+            assertEquals(2, after.size);
+
+            assertNull(Cache.mEventClassHierarchyCache.get(TestEvent1.class));
+            assertNotNull(Cache.mEventClassHierarchyCache.get(TestEvent3.class));
+
+            //2. eviction by the ClassLoader should remove classes of this loader, and sticky events
+            TestEvent3 stickyEvent = new TestEvent3();
+            Cache.stickyEvents.put(TestEvent3.class, stickyEvent);
+            Cache.findAllEventHandlersForSubscriber(new TestSubscriber1());
+            assertEquals(1, Cache.mEventHandlersCache.size());
+            //and the per-bus state keyed by these classes
+            EventBus eventBus = new EventBus();
+            eventBus.channel(TestEvent3.class);
+            eventBus.enableReplay(TestEvent3.class, 4);
+            eventBus.setSampling(TestEvent3.class, 0.5);
+
+            EventBus.evictMetadata(TestEvent3.class.getClassLoader());
+
+            assertEquals(0, Cache.mEventClassHierarchyCache.size());
+            assertEquals(0, Cache.mEventHandlersCache.size());
+            assertNull(Cache.stickyEvents.get(TestEvent3.class));
+            assertTrue(eventBus.mChannels.isEmpty());
+            assertTrue(eventBus.mReplayBuffers.isEmpty());
+            assertTrue(eventBus.mProducerLimits.isEmpty());
+        } finally {
+            Cache.mEventClassHierarchyCache.setMaxSize(0);
+            EventBus.setMetadataCacheStatisticsEnabled(false);
+            Cache.stickyEvents.clear();
+        }
+    }
+
+    public void testPreload() throws Exception {
+        EventBus eventBus = new EventBus();
+
+        //1. subscriber class should be scanned with its superclasses, and handled event classes
+        eventBus.preload(TestSubscriber2.class, TestEvent3.class);
+
+        long timeLimit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (Cache.mEventClassHierarchyCache.get(TestEvent3.class) == null && timeLimit > System.currentTimeMillis()) {
+            Thread.sleep(10);
+        }
+        assertNotNull(Cache.mEventHandlersCache.get(TestSubscriber2.class));
+        assertNotNull(Cache.mEventHandlersCache.get(TestSubscriber1.class));
+        assertNotNull(Cache.mEventClassHierarchyCache.get(TestEvent1.class));
+        assertNotNull(Cache.mEventClassHierarchyCache.get(TestEvent2.class));
+        assertNotNull(Cache.mEventClassHierarchyCache.get(TestEvent3.class));
+        //event classes are not cached as subscribers, nor their superclasses
+        assertNull(Cache.mEventHandlersCache.peek(TestEvent3.class));
+        assertNull(Cache.mEventHandlersCache.peek(TestEvent1.class));
+
+        //2. recorded profile should replay into the same cache content
+        List<String> profile = EventBus.getPreloadProfile();
+        assertTrue(profile.contains(TestSubscriber2.class.getName()));
+        assertTrue(profile.contains(TestEvent3.class.getName()));
+
+        purgeCache();
+        List<String> profileWithMissingClass = new ArrayList<>(profile);
+        profileWithMissingClass.add(0, "com.pgssoft.gimbus.mocks.RemovedClass");
+        eventBus.preload(getClass().getClassLoader(), profileWithMissingClass);
+
+        timeLimit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (Cache.mEventClassHierarchyCache.get(TestEvent3.class) == null && timeLimit > System.currentTimeMillis()) {
+            Thread.sleep(10);
+        }
+        assertEquals(profile, EventBus.getPreloadProfile());
+    }
+
+    public void testMetadataStore() throws Exception {
+        File file = File.createTempFile("gimbus", ".metadata");
+        try {
+            Cache.findAllEventHandlersForSubscriber(new TestSubscriber2());
+            Map<Class<?>, Cache.EventHandlersCacheItem> scanned = Cache.mEventHandlersCache.get(TestSubscriber1.class);
+            EventBus.saveMetadata(file, "checksum1");
+
+            //1. other checksum, nothing should be loaded
+            purgeCache();
+            assertFalse(EventBus.loadMetadata(file, "checksum2", getClass().getClassLoader()));
+            assertEquals(0, Cache.mEventHandlersCache.size());
+
+            //2. same checksum, all subscriber classes should be restored
+            assertTrue(EventBus.loadMetadata(file, "checksum1", getClass().getClassLoader()));
+            assertEquals(2, Cache.mEventHandlersCache.size());
+            assertNotNull(Cache.mEventHandlersCache.get(TestSubscriber2.class));
+
+            Map<Class<?>, Cache.EventHandlersCacheItem> loaded = Cache.mEventHandlersCache.get(TestSubscriber1.class);
+            assertEquals(scanned.keySet(), loaded.keySet());
+            Set<String> scannedHandlers = new HashSet<>();
+            for (Cache.EventHandlersCacheItem item = scanned.get(TestEvent1.class); item != null; item = item.nextItem) {
+                scannedHandlers.add(item.eventHandlerMethod.getName() + ":" + item.deliveryThread);
+            }
+            Set<String> loadedHandlers = new HashSet<>();
+            for (Cache.EventHandlersCacheItem item = loaded.get(TestEvent1.class); item != null; item = item.nextItem) {
+                loadedHandlers.add(item.eventHandlerMethod.getName() + ":" + item.deliveryThread);
+                assertSame(Dispatcher.getDispatchingMethod(item.eventHandlerMethod.getAnnotation(Subscribe.class)), item.dispatchingMethod);
+            }
+            assertEquals(4, loadedHandlers.size());
+            assertEquals(scannedHandlers, loadedHandlers);
+
+            //3. subscribers should work with the loaded data
+            assertEquals(2, Cache.findAllEventHandlersForSubscriber(new TestSubscriber2()).size());
+
+            //4. filter methods should be restored too
+            purgeCache();
+            Cache.findAllEventHandlersForSubscriber(new TestFilteringSubscriber());
+            EventBus.saveMetadata(file, "checksum1");
+            purgeCache();
+            assertTrue(EventBus.loadMetadata(file, "checksum1", getClass().getClassLoader()));
+            Cache.EventHandlersCacheItem filtered = Cache.mEventHandlersCache.get(TestFilteringSubscriber.class).get(TestKeyedEvent.class);
+            assertEquals("onTestKeyedEvent", filtered.eventHandlerMethod.getName());
+            assertEquals("isRelevant", filtered.filterMethod.getName());
+
+            //and the debounce and throttle
+            purgeCache();
+            Cache.findAllEventHandlersForSubscriber(new TestRateLimitedSubscriber());
+            EventBus.saveMetadata(file, "checksum1");
+            purgeCache();
+            assertTrue(EventBus.loadMetadata(file, "checksum1", getClass().getClassLoader()));
+            Map<Class<?>, Cache.EventHandlersCacheItem> rateLimited = Cache.mEventHandlersCache.get(TestRateLimitedSubscriber.class);
+            assertEquals(100, rateLimited.get(TestEvent1.class).debounceMs);
+            assertEquals(0, rateLimited.get(TestEvent1.class).throttleMs);
+            assertEquals(200, rateLimited.get(TestEvent2.class).throttleMs);
+
+            //5. corrupted file should be rejected, with none of the classes parsed before the corruption
+            purgeCache();
+            Cache.findAllEventHandlersForSubscriber(new TestSubscriber2());
+            EventBus.saveMetadata(file, "checksum1");
+            purgeCache();
+            RandomAccessFile corrupted = new RandomAccessFile(file, "rw");
+            corrupted.setLength(corrupted.length() - 4);
+            corrupted.close();
+            assertFalse(EventBus.loadMetadata(file, "checksum1", getClass().getClassLoader()));
+            assertEquals(0, Cache.mEventHandlersCache.size());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
     public void testMultipleStickyEventsOfSameClass() {
         assertTrue(Cache.stickyEvents.size() == 0);
 
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.pgssoft.gimbus.mocks.TestEvent1;
+import com.pgssoft.gimbus.mocks.TestSubscriber3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performance baseline for the hot paths of the bus: send fan-out, event hierarchy resolution,
+ * register / unregister churn, first subscriber scan, contended post throughput and background delivery
+ * through the shared and the work stealing executor.
+ * <p/>
+ * These are not regular tests, they only fail on broken delivery. Numbers are reported to logcat,
+ * see {@link Benchmark}. Run them alone with:
+ * <pre>
+ * adb shell am instrument -w -e size large com.pgssoft.gimbus.test/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+@LargeTest
+public class EventBusBenchmarkTest extends InstrumentationTestCase {
+
+    static final int OPERATIONS = 20000;
+
+    public static class CountingSubscriber {
+        int count = 0;
+
+        @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+        public void onTestEvent1(TestEvent1 event) {
+            count++;
+        }
+    }
+
+    public static class LatchSubscriber {
+        final CountDownLatch latch;
+
+        LatchSubscriber(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+        public void onTestEvent1(TestEvent1 event) {
+            latch.countDown();
+        }
+    }
+
+    public static class BackgroundLatchSubscriber {
+        final CountDownLatch latch;
+
+        BackgroundLatchSubscriber(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Subscribe(EventBus.DELIVER_IN_BACKGROUND_THREAD)
+        public void onTestEvent1(TestEvent1 event) {
+            latch.countDown();
+        }
+    }
+
+    //deep event hierarchy: 8 levels of classes, with interfaces (and repeated interfaces) mixed in
+    interface DeepInterface0 {
+    }
+
+    interface DeepInterface1 extends DeepInterface0 {
+    }
+
+    interface DeepInterface2 extends DeepInterface1 {
+    }
+
+    interface DeepInterface3 {
+    }
+
+    public static class DeepEvent0 implements DeepInterface0 {
+    }
+
+    public static class DeepEvent1 extends DeepEvent0 implements DeepInterface1 {
+    }
+
+    public static class DeepEvent2 extends DeepEvent1 implements DeepInterface2 {
+    }
+
+    public static class DeepEvent3 extends DeepEvent2 implements DeepInterface3 {
+    }
+
+    public static class DeepEvent4 extends DeepEvent3 {
+    }
+
+    public static class DeepEvent5 extends DeepEvent4 implements DeepInterface0 {
+    }
+
+    public static class DeepEvent6 extends DeepEvent5 {
+    }
+
+    public static class DeepEvent7 extends DeepEvent6 implements DeepInterface2, DeepInterface3 {
+    }
+
+
+    public void testSendFanOut() throws Exception {
+        final int[] fanOuts = {1, 10, 100};
+        for (int fanOut : fanOuts) {
+            final EventBus eventBus = new EventBus();
+            final List<CountingSubscriber> subscribers = new ArrayList<>();
+            for (int i = 0; i < fanOut; i++) {
+                CountingSubscriber subscriber = new CountingSubscriber();
+                subscribers.add(subscriber);
+                eventBus.register(subscriber);
+            }
+            final TestEvent1 event = new TestEvent1();
+
+            Benchmark.measure("send fan-out " + fanOut, OPERATIONS / fanOut, new Benchmark.Operation() {
+                @Override
+                public void run(int iteration) {
+                    eventBus.send(event);
+                }
+            });
+
+            for (CountingSubscriber subscriber : subscribers) {
+                assertTrue(subscriber.count > 0);
+                eventBus.unregister(subscriber);
+            }
+        }
+    }
+
+    public void testEventClassHierarchy() throws Exception {
+        final DeepEvent7 event = new DeepEvent7();
+
+        Benchmark.measure("getEventClasses deep hierarchy, cold", OPERATIONS / 10, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                Cache.mEventClassHierarchyCache.remove(DeepEvent7.class);
+                Cache.getEventClasses(event);
+            }
+        });
+
+        Benchmark.measure("getEventClasses deep hierarchy, cached", OPERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                Cache.getEventClasses(event);
+            }
+        });
+
+        final EventBus eventBus = new EventBus();
+        CountingSubscriber subscriber = new CountingSubscriber();
+        eventBus.register(subscriber);
+        Benchmark.measure("send deep hierarchy event, unhandled", OPERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                eventBus.send(event);
+            }
+        });
+        eventBus.unregister(subscriber);
+    }
+
+    public void testRegisterUnregisterChurn() throws Exception {
+        final int[] registrySizes = {10, 100, 1000};
+        for (int registrySize : registrySizes) {
+            final EventBus eventBus = new EventBus();
+            final List<Object> registered = new ArrayList<>();
+            for (int i = 0; i < registrySize; i++) {
+                TestSubscriber3 subscriber = new TestSubscriber3();
+                registered.add(subscriber);
+                eventBus.register(subscriber);
+            }
+            final TestSubscriber3 churned = new TestSubscriber3();
+
+            Benchmark.measure("register+unregister, registry " + registrySize, Math.max(100, OPERATIONS / registrySize), new Benchmark.Operation() {
+                @Override
+                public void run(int iteration) {
+                    eventBus.register(churned);
+                    eventBus.unregister(churned);
+                }
+            });
+
+            assertEquals(registrySize, eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class).size());
+            for (Object subscriber : registered) {
+                eventBus.unregister(subscriber);
+            }
+        }
+    }
+
+    public void testFirstScan() throws Exception {
+        Benchmark.measure("scanForEventHandlers, 4 handlers", OPERATIONS / 10, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                Cache.scanForEventHandlers(TestSubscriber3.class);
+            }
+        });
+
+        Benchmark.measure("scanForEventHandlers, no handlers", OPERATIONS / 10, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                Cache.scanForEventHandlers(EventBusBenchmarkTest.class);
+            }
+        });
+    }
+
+    public void testPostThroughputWithContention() throws Exception {
+        measurePostThroughput(false);
+    }
+
+    public void testRingPostThroughputWithContention() throws Exception {
+        measurePostThroughput(true);
+    }
+
+    void measurePostThroughput(boolean ringDispatch) throws Exception {
+        final int[] producerCounts = {1, 4, 8};
+        for (final int producers : producerCounts) {
+            final int postsPerProducer = OPERATIONS / producers;
+            final CountDownLatch delivered = new CountDownLatch(postsPerProducer * producers);
+            final EventBus eventBus = new EventBus();
+            if (ringDispatch) {
+                eventBus.enableRingDispatch(1024, EventBus.WAIT_YIELDING);
+            }
+            final LatchSubscriber subscriber = new LatchSubscriber(delivered);
+            eventBus.register(subscriber);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger ready = new AtomicInteger();
+            Thread[] threads = new Thread[producers];
+            for (int t = 0; t < producers; t++) {
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        TestEvent1 event = new TestEvent1();
+                        ready.incrementAndGet();
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < postsPerProducer; i++) {
+                            eventBus.post(event);
+                        }
+                    }
+                }, "Benchmark producer #" + t);
+                threads[t].start();
+            }
+            while (ready.get() < producers) {
+                Thread.yield();
+            }
+
+            long startNanos = System.nanoTime();
+            start.countDown();
+            assertTrue(delivered.await(60, TimeUnit.SECONDS));
+            long elapsed = System.nanoTime() - startNanos;
+
+            Benchmark.reportThroughput((ringDispatch ? "ring post, " : "post, ") + producers + " producers",
+                    postsPerProducer * producers, elapsed);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            eventBus.unregister(subscriber);
+            eventBus.disableRingDispatch();
+        }
+    }
+
+    public void testBackgroundDeliveryWithContention() throws Exception {
+        measureBackgroundDelivery(false);
+    }
+
+    public void testWorkStealingBackgroundDeliveryWithContention() throws Exception {
+        measureBackgroundDelivery(true);
+    }
+
+    /**
+     * Many producers sending events to a short background handler, so the executor queue is the bottleneck.
+     */
+    void measureBackgroundDelivery(boolean workStealing) throws Exception {
+        final int[] producerCounts = {1, 4, 8};
+        for (final int producers : producerCounts) {
+            final int sendsPerProducer = OPERATIONS / producers;
+            final CountDownLatch delivered = new CountDownLatch(sendsPerProducer * producers);
+            final Executor executor = workStealing ? EventBus.getWorkStealingExecutor() : EventBus.getSharedExecutor();
+            final EventBus eventBus = new EventBus("benchmark", executor);
+            final BackgroundLatchSubscriber subscriber = new BackgroundLatchSubscriber(delivered);
+            eventBus.register(subscriber);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger ready = new AtomicInteger();
+            Thread[] threads = new Thread[producers];
+            for (int t = 0; t < producers; t++) {
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        TestEvent1 event = new TestEvent1();
+                        ready.incrementAndGet();
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < sendsPerProducer; i++) {
+                            eventBus.send(event);
+                        }
+                    }
+                }, "Benchmark producer #" + t);
+                threads[t].start();
+            }
+            while (ready.get() < producers) {
+                Thread.yield();
+            }
+
+            long startNanos = System.nanoTime();
+            start.countDown();
+            assertTrue(delivered.await(60, TimeUnit.SECONDS));
+            long elapsed = System.nanoTime() - startNanos;
+
+            //below API 21 the work stealing executor is the default one, do not report it as work stealing
+            String name = !workStealing ? "background, "
+                    : executor == EventBus.getSharedExecutor() ? "work stealing (default) background, " : "work stealing background, ";
+            Benchmark.reportThroughput(name + producers + " producers",
+                    sendsPerProducer * producers, elapsed);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            eventBus.unregister(subscriber);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Randomized concurrency stress test for register / unregister / send / post races.
+ * <p/>
+ * Every worker thread owns a few subscribers, and randomly registers, unregisters, sends and posts,
+ * while all other workers do the same. Every event carries a global sequence number, which allows to
+ * check delivery guarantees without any locking in the test itself:
+ * <ul>
+ * <li>no lost registrations - an event sent after register() returned must be delivered;</li>
+ * <li>no duplicate deliveries - each event is delivered to a subscriber at most once;</li>
+ * <li>no deliveries after unregister - an event whose sequence number was taken after unregister()
+ * returned must never be delivered.</li>
+ * </ul>
+ * Additionally the Cache entries are randomly evicted, so the scanning code runs concurrently too.
+ * Throughput is reported to logcat every second, filter with "adb logcat -s gimBUS.Stress".
+ */
+@LargeTest
+public class EventBusStressTest extends InstrumentationTestCase {
+
+    static final String TAG = "gimBUS.Stress";
+
+    static final int WORKERS = 8;
+    static final int SUBSCRIBERS_PER_WORKER = 4;
+    static final long DURATION_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    static final AtomicLong sequence = new AtomicLong();
+
+    public static class StressEvent {
+        final long seq;
+
+        StressEvent(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    public static class StressSubscriber {
+        final Set<Long> received = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        volatile long unregisteredAtSeq = Long.MAX_VALUE;
+        final Violations violations;
+
+        StressSubscriber(Violations violations) {
+            this.violations = violations;
+        }
+
+        @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+        public void onStressEvent(StressEvent event) {
+            if (!received.add(event.seq)) {
+                violations.duplicates.incrementAndGet();
+            }
+            if (event.seq > unregisteredAtSeq) {
+                violations.afterUnregister.incrementAndGet();
+            }
+            violations.deliveries.incrementAndGet();
+        }
+    }
+
+    static class Violations {
+        final AtomicLong lostRegistrations = new AtomicLong();
+        final AtomicLong duplicates = new AtomicLong();
+        final AtomicLong afterUnregister = new AtomicLong();
+        final AtomicLong deliveries = new AtomicLong();
+        final AtomicLong operations = new AtomicLong();
+    }
+
+
+    public void testRegisterUnregisterPostRaces() throws Exception {
+        final EventBus eventBus = new EventBus();
+        final Violations violations = new Violations();
+        final long seed = System.nanoTime();
+        final long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+        final CountDownLatch finished = new CountDownLatch(WORKERS);
+        final Map<Thread, Throwable> failures = new ConcurrentHashMap<>();
+
+        Log.i(TAG, "seed " + seed);
+
+        for (int w = 0; w < WORKERS; w++) {
+            final Random random = new Random(seed + w);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work(eventBus, violations, random, deadline);
+                    } catch (Throwable e) {
+                        failures.put(Thread.currentThread(), e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "Stress worker #" + w).start();
+        }
+
+        long startNanos = System.nanoTime();
+        long lastOperations = 0;
+        while (!finished.await(1, TimeUnit.SECONDS)) {
+            long operations = violations.operations.get();
+            Log.i(TAG, String.format(Locale.US, "%d ops/s, %d deliveries total", operations - lastOperations, violations.deliveries.get()));
+            lastOperations = operations;
+        }
+        Benchmark.reportThroughput("stress register/unregister/send/post", violations.operations.get(), System.nanoTime() - startNanos);
+
+        assertTrue("Worker failed: " + failures, failures.isEmpty());
+        assertEquals("lost registrations", 0, violations.lostRegistrations.get());
+        assertEquals("duplicate deliveries", 0, violations.duplicates.get());
+        assertEquals("deliveries after unregister", 0, violations.afterUnregister.get());
+
+        //all workers unregistered all their subscribers, nothing may stay in the registry
+        for (Set<EventHandler> eventHandlers : eventBus.mRegisteredEventHandlersByEventType.values()) {
+            assertEquals(0, eventHandlers.size());
+        }
+    }
+
+    static void work(EventBus eventBus, Violations violations, Random random, long deadline) {
+        List<StressSubscriber> registered = new ArrayList<>();
+
+        while (System.currentTimeMillis() < deadline) {
+            int action = random.nextInt(100);
+            if (action < 25 && registered.size() < SUBSCRIBERS_PER_WORKER) {
+                StressSubscriber subscriber = new StressSubscriber(violations);
+                eventBus.register(subscriber);
+                registered.add(subscriber);
+                //probe: handler is DELIVER_IN_DISPATCHER_THREAD, so send() delivers before it returns
+                long seq = sequence.incrementAndGet();
+                eventBus.send(new StressEvent(seq));
+                if (!subscriber.received.contains(seq)) {
+                    violations.lostRegistrations.incrementAndGet();
+                }
+            } else if (action < 50 && !registered.isEmpty()) {
+                StressSubscriber subscriber = registered.remove(random.nextInt(registered.size()));
+                eventBus.unregister(subscriber);
+                subscriber.unregisteredAtSeq = sequence.get();
+                //probe: must not be delivered, checked by the subscriber itself
+                eventBus.send(new StressEvent(sequence.incrementAndGet()));
+            } else if (action < 75) {
+                eventBus.send(new StressEvent(sequence.incrementAndGet()));
+            } else if (action < 95) {
+                eventBus.post(new StressEvent(sequence.incrementAndGet()));
+            } else {
+                //force concurrent re-scan of the subscriber and event classes
+                Cache.mEventHandlersCache.remove(StressSubscriber.class);
+                Cache.mEventClassHierarchyCache.remove(StressEvent.class);
+            }
+            violations.operations.incrementAndGet();
+        }
+
+        for (StressSubscriber subscriber : registered) {
+            eventBus.unregister(subscriber);
+            subscriber.unregisteredAtSeq = sequence.get();
+        }
+    }
+
+}
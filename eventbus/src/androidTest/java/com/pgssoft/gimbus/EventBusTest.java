@@ -7,22 +7,36 @@
  */
 package com.pgssoft.gimbus;
 
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.test.InstrumentationTestCase;
 
 import com.pgssoft.gimbus.mocks.Reference;
 import com.pgssoft.gimbus.mocks.TestEvent1;
 import com.pgssoft.gimbus.mocks.TestEvent2;
 import com.pgssoft.gimbus.mocks.TestEvent3;
+import com.pgssoft.gimbus.mocks.TestFilteringSubscriber;
 import com.pgssoft.gimbus.mocks.TestInterfaceEvent1;
+import com.pgssoft.gimbus.mocks.TestKeyedEvent;
+import com.pgssoft.gimbus.mocks.TestRateLimitedSubscriber;
 import com.pgssoft.gimbus.mocks.TestSubscriber3;
 import com.pgssoft.gimbus.mocks.TestSubscriber4;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * General EventBus tests.
@@ -232,6 +246,577 @@ public class EventBusTest extends InstrumentationTestCase {
         eventBus.send(testEvent1);
     }
 
+    public void testStrongReferenceToTargets() throws Exception {
+        EventBus eventBus = new EventBus();
+        TestSubscriber3 testSubscriber3 = new TestSubscriber3();
+        WeakReference<TestSubscriber3> weakTarget = new WeakReference<>(testSubscriber3);
+        TestEvent1 testEvent1 = new TestEvent1();
+        eventBus.registerStrong(testSubscriber3);
+
+        for (EventHandler eventHandler : eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class)) {
+            assertNull(eventHandler.mSubscriber);
+            assertSame(testSubscriber3, eventHandler.mStrongSubscriber);
+        }
+
+        //subscriber should survive GC, while registered
+        //noinspection UnusedAssignment
+        testSubscriber3 = null;
+        for (int i = 0; i < 5; i++) {
+            System.runFinalization();
+            Runtime.getRuntime().gc();
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNotNull(weakTarget.get());
+
+        eventBus.send(testEvent1);
+        assertSame(testEvent1, weakTarget.get().lastReceivedEvent1);
+
+        //after unregister it should be released
+        eventBus.unregister(weakTarget.get());
+        assertEquals(0, eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class).size());
+        long timeLimit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (weakTarget.get() != null && timeLimit > System.currentTimeMillis()) {
+            System.runFinalization();
+            Runtime.getRuntime().gc();
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertNull(weakTarget.get());
+    }
+
+    public void testAssignThreadForUnregisteredSubscriber() throws Exception {
+        EventBus eventBus = new EventBus();
+        TestSubscriber3 testSubscriber3 = new TestSubscriber3();
+
+        //nothing to update, and nothing is kept
+        eventBus.assignThreadForSubscriber(testSubscriber3);
+        assertTrue(eventBus.mSubscribersDefaultThreads.isEmpty());
+
+        eventBus.register(testSubscriber3);
+        assertEquals(1, eventBus.mSubscribersDefaultThreads.size());
+        eventBus.assignThreadForSubscriber(testSubscriber3);
+        assertEquals(1, eventBus.mSubscribersDefaultThreads.size());
+        eventBus.unregister(testSubscriber3);
+        assertTrue(eventBus.mSubscribersDefaultThreads.isEmpty());
+    }
+
+    public void testRegisterStrongAfterRegister() throws Exception {
+        final EventBus eventBus = new EventBus();
+        final TestSubscriber3 testSubscriber3 = new TestSubscriber3();
+        HandlerThread thread1 = new HandlerThread("thread1");
+        HandlerThread thread2 = new HandlerThread("thread2");
+        thread1.start();
+        thread2.start();
+        try {
+            runInThread(thread1, new Runnable() {
+                @Override
+                public void run() {
+                    eventBus.register(testSubscriber3);
+                }
+            });
+
+            //a weakly registered subscriber is not switched to strong, nor moved to the calling thread
+            final boolean[] rejected = new boolean[1];
+            runInThread(thread2, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        eventBus.registerStrong(testSubscriber3);
+                    } catch (IllegalStateException ignored) {
+                        rejected[0] = true;
+                    }
+                }
+            });
+            assertTrue(rejected[0]);
+            for (EventHandler eventHandler : eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class)) {
+                assertNull(eventHandler.mStrongSubscriber);
+                assertSame(thread1.getLooper(), eventHandler.mDefaultThread.mHandler.getLooper());
+            }
+        } finally {
+            thread1.quit();
+            thread2.quit();
+        }
+
+        //after unregister it can be registered strongly, and again, with no effect
+        eventBus.unregister(testSubscriber3);
+        eventBus.registerStrong(testSubscriber3);
+        eventBus.registerStrong(testSubscriber3);
+        eventBus.register(testSubscriber3);
+        assertEquals(1, eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class).size());
+        for (EventHandler eventHandler : eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class)) {
+            assertSame(testSubscriber3, eventHandler.mStrongSubscriber);
+        }
+        eventBus.unregister(testSubscriber3);
+    }
+
+    public void testFunctionalSubscription() throws Exception {
+        EventBus eventBus = new EventBus();
+        final List<TestEvent1> received = new ArrayList<>();
+
+        Subscription subscription = eventBus.subscribe(TestEvent1.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<TestEvent1>() {
+            @Override
+            public void accept(@NonNull TestEvent1 event) {
+                received.add(event);
+            }
+        });
+        assertSame(TestEvent1.class, subscription.getEventClass());
+        assertEquals(1, eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class).size());
+
+        //events of the class, and its subclasses should be received
+        TestEvent1 testEvent1 = new TestEvent1();
+        TestEvent3 testEvent3 = new TestEvent3();
+        eventBus.send(testEvent1);
+        eventBus.send(testEvent3);
+        eventBus.send(new TestEvent2());
+        assertEquals(2, received.size());
+        assertSame(testEvent1, received.get(0));
+        assertSame(testEvent3, received.get(1));
+
+        //after close, nothing should be received
+        subscription.close();
+        assertTrue(subscription.isClosed());
+        assertEquals(0, eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class).size());
+        eventBus.send(new TestEvent1());
+        assertEquals(2, received.size());
+
+        //second close is harmless
+        subscription.close();
+    }
+
+    public void testChannel() throws Exception {
+        EventBus eventBus = new EventBus();
+        final List<Object> received = new ArrayList<>();
+
+        Channel<TestEvent1> channel = eventBus.channel(TestEvent1.class);
+        assertSame(channel, eventBus.channel(TestEvent1.class));
+        assertSame(TestEvent1.class, channel.getEventClass());
+        assertEquals(0, channel.mEventHandlers.length);
+
+        //handlers of the event class, and of its superclass, registered after the channel was created
+        Object aSubscriber = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onObject(Object event) {
+                received.add(event);
+            }
+        };
+        eventBus.register(aSubscriber);
+        Subscription subscription = eventBus.subscribe(TestEvent1.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<TestEvent1>() {
+            @Override
+            public void accept(@NonNull TestEvent1 event) {
+                received.add(event);
+            }
+        });
+        assertEquals(2, channel.mEventHandlers.length);
+
+        TestEvent1 testEvent1 = new TestEvent1();
+        channel.send(testEvent1);
+        assertEquals(2, received.size());
+        assertSame(testEvent1, received.get(0));
+        assertSame(testEvent1, received.get(1));
+
+        //subclasses are not routed by the channel
+        try {
+            channel.send(new TestEvent3());
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        //the snapshot follows unregister and close
+        eventBus.unregister(aSubscriber);
+        assertEquals(1, channel.mEventHandlers.length);
+        subscription.close();
+        assertEquals(0, channel.mEventHandlers.length);
+        channel.send(new TestEvent1());
+        assertEquals(2, received.size());
+    }
+
+    public void testKeyedSubscriptions() throws Exception {
+        EventBus eventBus = new EventBus();
+        final List<String> received = new ArrayList<>();
+
+        Object subscriberA = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onKeyedEvent(TestKeyedEvent event) {
+                received.add("A" + event.getEventKey());
+            }
+        };
+        Object subscriberB = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onKeyedEvent(TestKeyedEvent event) {
+                received.add("B" + event.getEventKey());
+            }
+        };
+        Object subscriberAll = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onKeyedEvent(TestKeyedEvent event) {
+                received.add("*" + event.getEventKey());
+            }
+        };
+        eventBus.register(subscriberA, "a");
+        eventBus.register(subscriberB, "b");
+        eventBus.register(subscriberAll);
+        Subscription subscription = eventBus.subscribe(TestKeyedEvent.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, "b", new Consumer<TestKeyedEvent>() {
+            @Override
+            public void accept(@NonNull TestKeyedEvent event) {
+                received.add("C" + event.getEventKey());
+            }
+        });
+
+        //keyed subscribers get events of their key only, not keyed ones get all
+        eventBus.send(new TestKeyedEvent("a"));
+        assertEquals("[*a, Aa]", sorted(received).toString());
+        received.clear();
+        eventBus.send(new TestKeyedEvent("b"));
+        assertEquals("[*b, Bb, Cb]", sorted(received).toString());
+        received.clear();
+        eventBus.send(new TestKeyedEvent(null));
+        assertEquals("[*null]", received.toString());
+        received.clear();
+
+        //channels route keyed events too
+        eventBus.channel(TestKeyedEvent.class).send(new TestKeyedEvent("a"));
+        assertEquals("[*a, Aa]", sorted(received).toString());
+        received.clear();
+
+        //empty keys are removed from the index
+        eventBus.unregister(subscriberA);
+        assertNull(eventBus.mKeyedEventHandlersByEventType.get(TestKeyedEvent.class).get("a"));
+        subscription.close();
+        eventBus.unregister(subscriberB);
+        assertTrue(eventBus.mKeyedEventHandlersByEventType.get(TestKeyedEvent.class).isEmpty());
+        eventBus.send(new TestKeyedEvent("b"));
+        assertEquals("[*b]", received.toString());
+    }
+
+    public void testFilters() throws Exception {
+        EventBus eventBus = new EventBus();
+        final List<Object> deadEvents = new ArrayList<>();
+        Object deadEventSubscriber = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onDeadEvent(DeadEvent event) {
+                deadEvents.add(event.event);
+            }
+        };
+        eventBus.register(deadEventSubscriber);
+
+        //1. companion filter method
+        TestFilteringSubscriber subscriber = new TestFilteringSubscriber();
+        subscriber.relevantKey = "a";
+        eventBus.register(subscriber);
+        TestKeyedEvent relevant = new TestKeyedEvent("a");
+        eventBus.send(new TestKeyedEvent("b"));
+        eventBus.send(relevant);
+        assertEquals(1, subscriber.events.size());
+        assertSame(relevant, subscriber.events.get(0));
+        assertEquals(2, subscriber.filterThreads.size());
+        //filtered out events are handled, not dead
+        assertEquals(0, deadEvents.size());
+
+        //the filter is evaluated in the dispatcher thread
+        subscriber.filterThreads.clear();
+        eventBus.post(new TestKeyedEvent("b"));
+        long timeLimit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (subscriber.filterThreads.isEmpty() && timeLimit > System.currentTimeMillis()) {
+            Thread.sleep(10);
+        }
+        assertEquals(EventBus.DISPATHER_THREAD_NAME, subscriber.filterThreads.get(0).getName());
+        eventBus.unregister(subscriber);
+
+        //2. predicate of the functional subscription
+        final List<TestEvent1> received = new ArrayList<>();
+        final TestEvent1 accepted = new TestEvent1();
+        eventBus.subscribe(TestEvent1.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, null, new Predicate<TestEvent1>() {
+            @Override
+            public boolean test(@NonNull TestEvent1 event) {
+                return event == accepted;
+            }
+        }, new Consumer<TestEvent1>() {
+            @Override
+            public void accept(@NonNull TestEvent1 event) {
+                received.add(event);
+            }
+        });
+        eventBus.send(new TestEvent1());
+        eventBus.send(accepted);
+        assertEquals(1, received.size());
+        assertSame(accepted, received.get(0));
+        assertEquals(0, deadEvents.size());
+
+        //3. invalid filter methods are rejected at register
+        try {
+            eventBus.register(new Object() {
+                @Subscribe(filter = "missing")
+                void onTestEvent1(TestEvent1 event) {
+                }
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            eventBus.register(new Object() {
+                @Subscribe(filter = "notBoolean")
+                void onTestEvent1(TestEvent1 event) {
+                }
+
+                int notBoolean(TestEvent1 event) {
+                    return 0;
+                }
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    public void testImmediateDelivery() throws Exception {
+        final EventBus eventBus = new EventBus();
+        final List<String> received = new ArrayList<>();
+        final AtomicInteger nestedCount = new AtomicInteger();
+
+        Object aSubscriber = new Object() {
+            @Subscribe(value = EventBus.DELIVER_IN_UI_THREAD, immediate = true)
+            void onTestEvent1(TestEvent1 event) {
+                received.add("immediate");
+            }
+
+            @Subscribe(EventBus.DELIVER_IN_UI_THREAD)
+            void onTestEvent2(TestEvent2 event) {
+                received.add("posted");
+            }
+
+            @Subscribe(value = EventBus.DELIVER_IN_UI_THREAD, immediate = true)
+            void onTestEvent3(TestEvent3 event) {
+                //reentrant send, only limited depth is delivered immediately
+                if (nestedCount.incrementAndGet() < 20) {
+                    eventBus.send(new TestEvent3());
+                }
+            }
+        };
+        eventBus.register(aSubscriber);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> handlerImmediate = new ArrayList<>();
+        final List<String> busImmediate = new ArrayList<>();
+        final int[] nestedBeforeReturn = new int[1];
+        EventBus.mUiThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                //only the handler marked immediate is delivered before send() returns
+                eventBus.send(new TestEvent1());
+                eventBus.send(new TestEvent2());
+                handlerImmediate.addAll(received);
+                received.clear();
+
+                //the bus wide setting makes all handlers immediate
+                eventBus.setImmediateDelivery(true);
+                eventBus.send(new TestEvent2());
+                busImmediate.addAll(received);
+
+                eventBus.send(new TestEvent3());
+                nestedBeforeReturn[0] = nestedCount.get();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("[immediate]", handlerImmediate.toString());
+        assertEquals("[posted]", busImmediate.toString());
+        assertEquals(Dispatcher.MAX_IMMEDIATE_DEPTH, nestedBeforeReturn[0]);
+
+        //deeper deliveries were posted, not lost
+        long timeLimit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (nestedCount.get() < 20 && timeLimit > System.currentTimeMillis()) {
+            Thread.sleep(10);
+        }
+        assertEquals(20, nestedCount.get());
+    }
+
+    public void testDefaultThreadBoundAtRegistration() throws Exception {
+        final EventBus eventBus = new EventBus();
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch received = new CountDownLatch(2);
+
+        final Object aSubscriber = new Object() {
+            @Subscribe
+            void onTestEvent1(TestEvent1 event) {
+                threads.add(Thread.currentThread().getName());
+                received.countDown();
+            }
+
+            @Subscribe
+            void onTestEvent2(TestEvent2 event) {
+            }
+        };
+
+        HandlerThread thread1 = new HandlerThread("thread1");
+        HandlerThread thread2 = new HandlerThread("thread2");
+        thread1.start();
+        thread2.start();
+        try {
+            //register in the thread1, all handlers share one DefaultThread
+            runInThread(thread1, new Runnable() {
+                @Override
+                public void run() {
+                    eventBus.register(aSubscriber);
+                }
+            });
+            DefaultThread defaultThread = eventBus.mRegisteredEventHandlersByEventType.get(TestEvent1.class).iterator().next().mDefaultThread;
+            assertNotNull(defaultThread);
+            assertSame(defaultThread, eventBus.mRegisteredEventHandlersByEventType.get(TestEvent2.class).iterator().next().mDefaultThread);
+            assertSame(thread1.getLooper(), defaultThread.mHandler.getLooper());
+            eventBus.send(new TestEvent1());
+
+            //re-assign to the thread2, registered handlers follow
+            runInThread(thread2, new Runnable() {
+                @Override
+                public void run() {
+                    eventBus.assignThreadForSubscriber(aSubscriber);
+                }
+            });
+            assertSame(thread2.getLooper(), defaultThread.mHandler.getLooper());
+            eventBus.send(new TestEvent1());
+
+            assertTrue(received.await(10, TimeUnit.SECONDS));
+            //the first delivery may still be queued in the thread1, order is not guaranteed
+            assertEquals("[thread1, thread2]", sorted(threads).toString());
+        } finally {
+            thread1.quit();
+            thread2.quit();
+        }
+    }
+
+    public void testLinkedBuses() throws Exception {
+        EventBus parent = new EventBus("parent", null);
+        EventBus childA = new EventBus("childA", null);
+        EventBus childB = new EventBus("childB", null);
+        parent.addChild(childA);
+        parent.addChild(childB);
+        assertSame(parent, childA.getParent());
+
+        //the buses have to form a tree
+        try {
+            childA.addChild(parent);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            childB.addChild(childA);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        TestSubscriber3 parentSubscriber = new TestSubscriber3();
+        TestSubscriber3 subscriberA = new TestSubscriber3();
+        TestSubscriber3 subscriberB = new TestSubscriber3();
+        parent.register(parentSubscriber);
+        childA.register(subscriberA);
+        childB.register(subscriberB);
+        final List<Object> deadEvents = new ArrayList<>();
+        Object deadEventSubscriber = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onDeadEvent(DeadEvent event) {
+                deadEvents.add(event.event);
+            }
+        };
+        childA.register(deadEventSubscriber);
+
+        //1. no rules, nothing is forwarded
+        TestEvent1 testEvent1 = new TestEvent1();
+        childA.send(testEvent1);
+        assertSame(testEvent1, subscriberA.lastReceivedEvent1);
+        assertNull(parentSubscriber.lastReceivedEvent1);
+
+        //2. up to the parent, and from there down to the other child, but never back to the sender
+        childA.forwardToParent(TestEvent1.class);
+        parent.forwardToChildren(TestEvent1.class);
+        final List<TestEvent1> receivedInA = new ArrayList<>();
+        Subscription subscription = childA.subscribe(TestEvent1.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<TestEvent1>() {
+            @Override
+            public void accept(@NonNull TestEvent1 event) {
+                receivedInA.add(event);
+            }
+        });
+        TestEvent3 testEvent3 = new TestEvent3();
+        childA.send(testEvent3);
+        assertSame(testEvent3, parentSubscriber.lastReceivedEvent3);
+        assertSame(testEvent3, subscriberB.lastReceivedEvent3);
+        assertEquals(1, receivedInA.size());
+        subscription.close();
+
+        //3. the event is not dead if any linked bus handled it
+        childA.unregister(subscriberA);
+        childA.send(new TestEvent1());
+        assertEquals(0, deadEvents.size());
+        parent.stopForwarding(TestEvent1.class);
+        childA.stopForwarding(TestEvent1.class);
+        childA.send(new TestEvent1());
+        assertEquals(1, deadEvents.size());
+
+        //4. unlinked
+        childA.forwardToParent(TestEvent1.class);
+        parent.removeChild(childA);
+        assertNull(childA.getParent());
+        parentSubscriber.lastReceivedEvent1 = null;
+        childA.send(new TestEvent1());
+        assertNull(parentSubscriber.lastReceivedEvent1);
+
+        //5. the parent collects the dead events of a child, the child has no DeadEvent handlers itself
+        final List<Object> parentDeadEvents = new ArrayList<>();
+        Object parentDeadEventSubscriber = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onDeadEvent(DeadEvent event) {
+                parentDeadEvents.add(event.event);
+            }
+        };
+        parent.register(parentDeadEventSubscriber);
+        childB.forwardToParent(DeadEvent.class);
+        assertTrue(childB.hasDeadEventHandlers());
+        String unhandled = "unhandled";
+        childB.send(unhandled);
+        assertEquals(Collections.<Object>singletonList(unhandled), parentDeadEvents);
+        childB.stopForwarding(DeadEvent.class);
+        assertFalse(childB.hasDeadEventHandlers());
+        parent.unregister(parentDeadEventSubscriber);
+
+        //6. the events forwarded to a child are replayed by the child to its late subscribers
+        childB.enableReplay(TestEvent2.class, 2);
+        parent.forwardToChildren(TestEvent2.class);
+        List<TestEvent2> forwarded = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TestEvent2 event = new TestEvent2();
+            forwarded.add(event);
+            parent.send(event);
+        }
+        final List<TestEvent2> replayedInB = new ArrayList<>();
+        subscription = childB.subscribe(TestEvent2.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<TestEvent2>() {
+            @Override
+            public void accept(@NonNull TestEvent2 event) {
+                replayedInB.add(event);
+            }
+        });
+        assertEquals(forwarded.subList(1, 3), replayedInB);
+        subscription.close();
+        parent.stopForwarding(TestEvent2.class);
+        childB.disableReplay(TestEvent2.class);
+    }
+
+    private static void runInThread(HandlerThread thread, final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> result = new ArrayList<>(list);
+        Collections.sort(result);
+        return result;
+    }
+
     public void testUIThreadDelivery() throws Exception {
         //given
         EventBus eventBus = new EventBus();
@@ -287,6 +872,34 @@ public class EventBusTest extends InstrumentationTestCase {
         assertTrue(isBkgThread.ref);
     }
 
+    public void testWorkStealingBackgroundDelivery() throws Exception {
+        EventBus eventBus = new EventBus("work stealing", EventBus.getWorkStealingExecutor());
+        assertSame(EventBus.getWorkStealingExecutor(), eventBus.mBackgroundExecutor);
+        final int COUNT = 1000;
+        final CountDownLatch delivered = new CountDownLatch(COUNT);
+        final Reference<Boolean> isWorkStealingThread = new Reference<>(true);
+
+        Object aSubscriber = new Object() {
+
+            @Subscribe(EventBus.DELIVER_IN_BACKGROUND_THREAD)
+            void onTestEvent1(TestEvent1 event) {
+                if (!Thread.currentThread().getName().contains(EventBus.WORK_STEALING_THREAD_NAME)) {
+                    isWorkStealingThread.ref = false;
+                }
+                delivered.countDown();
+            }
+        };
+        eventBus.register(aSubscriber);
+
+        for (int i = 0; i < COUNT; i++) {
+            eventBus.send(new TestEvent1());
+        }
+
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        assertTrue(isWorkStealingThread.ref);
+        eventBus.unregister(aSubscriber);
+    }
+
     public void testDeliveryInSequence() throws Exception {
         //bus have to deliver events in same order as posted, with exception for completely asynchronous background delivery
         final int COUNT = 100 * 100;
@@ -341,4 +954,377 @@ public class EventBusTest extends InstrumentationTestCase {
         eventBus.register(testSubscriber3);
         assertNull(testSubscriber3.lastReceivedEvent1);
     }
+
+    public void testReplay() {
+        EventBus eventBus = new EventBus();
+        eventBus.enableReplay(TestEvent1.class, 3);
+
+        List<TestEvent1> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestEvent1 event = i % 2 == 0 ? new TestEvent1() : new TestEvent3();
+            sent.add(event);
+            eventBus.send(event);
+        }
+        //not recorded, sent to a single subscriber
+        eventBus.sendTo(new TestEvent1(), this);
+
+        //the last 3 events, subclasses included, in order
+        final List<Object> received = new ArrayList<>();
+        Subscription subscription = eventBus.subscribe(TestEvent1.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<TestEvent1>() {
+            @Override
+            public void accept(@NonNull TestEvent1 event) {
+                received.add(event);
+            }
+        });
+        assertEquals(sent.subList(2, 5), received);
+
+        //annotated subscribers too, each handler gets the buffer of its own event type only
+        final List<Object> receivedByObject = new ArrayList<>();
+        received.clear();
+        Object aSubscriber = new Object() {
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onTestEvent1(TestEvent1 event) {
+                received.add(event);
+            }
+
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onObject(Object event) {
+                receivedByObject.add(event);
+            }
+        };
+        eventBus.register(aSubscriber);
+        assertEquals(sent.subList(2, 5), received);
+        assertEquals(0, receivedByObject.size());
+        eventBus.unregister(aSubscriber);
+        subscription.close();
+
+        //disabled, nothing is replayed
+        eventBus.disableReplay(TestEvent1.class);
+        received.clear();
+        eventBus.register(aSubscriber);
+        assertEquals(0, received.size());
+        eventBus.unregister(aSubscriber);
+    }
+
+    public void testRingDispatch() throws Exception {
+        EventBus eventBus = new EventBus();
+        eventBus.enableRingDispatch(64, EventBus.WAIT_BLOCKING);
+        try {
+            eventBus.enableRingDispatch(64, EventBus.WAIT_BLOCKING);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        final int count = 1000;
+        final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(count + 1);
+        eventBus.subscribe(TestEvent1.class, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<TestEvent1>() {
+            @Override
+            public void accept(@NonNull TestEvent1 event) {
+                received.add(event);
+                threads.add(Thread.currentThread().getName());
+                done.countDown();
+            }
+        });
+
+        List<TestEvent1> posted = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            TestEvent1 event = new TestEvent1();
+            posted.add(event);
+            eventBus.post(event);
+        }
+        //channels post through the ring too
+        TestEvent1 channelEvent = new TestEvent1();
+        posted.add(channelEvent);
+        eventBus.channel(TestEvent1.class).post(channelEvent);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(posted, received);
+        assertTrue(threads.get(0).startsWith(EventBus.RING_DISPATCHER_THREAD_NAME));
+
+        //disabled, the ring thread ends, and post() uses the dispatcher thread Handler again
+        Thread ringThread = eventBus.mRingDispatcher.mConsumerThread;
+        eventBus.disableRingDispatch();
+        ringThread.join(10000);
+        assertFalse(ringThread.isAlive());
+        eventBus.post(new TestEvent1());
+        long timeLimit = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (received.size() < count + 2 && timeLimit > System.currentTimeMillis()) {
+            Thread.sleep(10);
+        }
+        assertEquals(count + 2, received.size());
+        assertEquals(EventBus.DISPATHER_THREAD_NAME, threads.get(count + 1));
+    }
+
+    public void testDebounceAndThrottle() throws Exception {
+        EventBus eventBus = new EventBus();
+        TestRateLimitedSubscriber subscriber = new TestRateLimitedSubscriber();
+        eventBus.register(subscriber);
+
+        //a burst, only the last event is delivered, after the debounce period
+        TestEvent1 lastEvent1 = null;
+        for (int i = 0; i < 10; i++) {
+            lastEvent1 = new TestEvent1();
+            eventBus.send(lastEvent1);
+        }
+        assertEquals(0, subscriber.debouncedEvents.size());
+        for (int i = 0; i < 100 && subscriber.debouncedEvents.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(150);
+        assertEquals(1, subscriber.debouncedEvents.size());
+        assertSame(lastEvent1, subscriber.debouncedEvents.get(0));
+        assertEquals(EventBus.DISPATHER_THREAD_NAME, subscriber.debouncedThreads.get(0));
+
+        //a burst, only the first event is delivered, at once
+        TestEvent2 firstEvent2 = new TestEvent2();
+        eventBus.send(firstEvent2);
+        for (int i = 0; i < 10; i++) {
+            eventBus.send(new TestEvent2());
+        }
+        assertEquals(1, subscriber.throttledEvents.size());
+        assertSame(firstEvent2, subscriber.throttledEvents.get(0));
+        //next period
+        Thread.sleep(250);
+        eventBus.send(new TestEvent2());
+        assertEquals(2, subscriber.throttledEvents.size());
+
+        //the event held by the debounce is dropped on unregister
+        eventBus.send(new TestEvent1());
+        eventBus.unregister(subscriber);
+        Thread.sleep(250);
+        assertEquals(1, subscriber.debouncedEvents.size());
+
+        //debounce and throttle can't be used together
+        try {
+            eventBus.register(new Object() {
+                @Subscribe(debounceMs = 10, throttleMs = 10)
+                public void onTestEvent1(TestEvent1 event) {
+                }
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+
+        //with the ring dispatch, the debounced event is delivered in the ring dispatcher thread too
+        EventBus ringEventBus = new EventBus();
+        ringEventBus.enableRingDispatch(64, EventBus.WAIT_BLOCKING);
+        TestRateLimitedSubscriber ringSubscriber = new TestRateLimitedSubscriber();
+        ringEventBus.register(ringSubscriber);
+        TestEvent1 lastRingEvent1 = null;
+        for (int i = 0; i < 10; i++) {
+            lastRingEvent1 = new TestEvent1();
+            ringEventBus.post(lastRingEvent1);
+        }
+        for (int i = 0; i < 100 && ringSubscriber.debouncedEvents.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(150);
+        assertEquals(1, ringSubscriber.debouncedEvents.size());
+        assertSame(lastRingEvent1, ringSubscriber.debouncedEvents.get(0));
+        assertTrue(ringSubscriber.debouncedThreads.get(0).startsWith(EventBus.RING_DISPATCHER_THREAD_NAME));
+        ringEventBus.unregister(ringSubscriber);
+        ringEventBus.disableRingDispatch();
+    }
+
+    public void testDeadEventRateLimit() {
+        EventBus eventBus = new EventBus();
+        final List<DeadEvent> deadEvents = new ArrayList<>();
+
+        //no DeadEvent subscriber, unhandled events are simply ignored
+        eventBus.send(new TestEvent1());
+        assertFalse(eventBus.hasDeadEventHandlers());
+
+        Object deadEventSubscriber = new Object() {
+
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onDeadEvent(DeadEvent event) {
+                deadEvents.add(event);
+            }
+        };
+        eventBus.register(deadEventSubscriber);
+        assertTrue(eventBus.hasDeadEventHandlers());
+
+        TestEvent1 testEvent1 = new TestEvent1();
+        eventBus.send(testEvent1);
+        assertEquals(1, deadEvents.size());
+        assertSame(testEvent1, deadEvents.get(0).event);
+        deadEvents.clear();
+
+        //with the limit, only the burst gets through
+        eventBus.setDeadEventRateLimit(2);
+        for (int i = 0; i < 10; i++) {
+            eventBus.send(new TestEvent1());
+        }
+        assertEquals(2, deadEvents.size());
+        assertEquals(8, eventBus.getDroppedDeadEventCount());
+        deadEvents.clear();
+
+        //without the limit again, all get through
+        eventBus.setDeadEventRateLimit(0);
+        for (int i = 0; i < 10; i++) {
+            eventBus.send(new TestEvent1());
+        }
+        assertEquals(10, deadEvents.size());
+
+        eventBus.unregister(deadEventSubscriber);
+    }
+
+    public void testProducerLimits() {
+        EventBus eventBus = new EventBus();
+        final List<Object> received = new ArrayList<>();
+        //referenced by the test, the bus keeps weak references only
+        Object subscriber = new Object() {
+
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onTestEvent1(TestEvent1 event) {
+                received.add(event);
+            }
+
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onTestEvent2(TestEvent2 event) {
+                received.add(event);
+            }
+        };
+        eventBus.register(subscriber);
+
+        //only the burst gets through, other event classes are not limited
+        eventBus.setRateLimit(TestEvent1.class, 0.1, 3);
+        for (int i = 0; i < 10; i++) {
+            eventBus.send(new TestEvent1());
+            eventBus.send(new TestEvent2());
+        }
+        assertEquals(13, received.size());
+        assertEquals(7, eventBus.getRateLimitedEventCount(TestEvent1.class));
+        assertEquals(0, eventBus.getRateLimitedEventCount(TestEvent2.class));
+        received.clear();
+
+        //without the limit again, all get through
+        eventBus.setRateLimit(TestEvent1.class, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            eventBus.send(new TestEvent1());
+        }
+        assertEquals(10, received.size());
+        received.clear();
+
+        //nothing sampled, the sampled out events are not counted as rate limited
+        eventBus.setSampling(TestEvent2.class, 0);
+        eventBus.setRateLimit(TestEvent2.class, 0.1, 1);
+        for (int i = 0; i < 10; i++) {
+            eventBus.send(new TestEvent2());
+        }
+        assertEquals(0, received.size());
+        assertEquals(10, eventBus.getSampledOutEventCount(TestEvent2.class));
+        assertEquals(0, eventBus.getRateLimitedEventCount(TestEvent2.class));
+        eventBus.setRateLimit(TestEvent2.class, 0, 0);
+
+        //roughly half sampled
+        eventBus.setSampling(TestEvent2.class, 0.5);
+        for (int i = 0; i < 1000; i++) {
+            eventBus.send(new TestEvent2());
+        }
+        assertTrue(received.size() > 350 && received.size() < 650);
+        assertEquals(1010, received.size() + eventBus.getSampledOutEventCount(TestEvent2.class));
+
+        try {
+            eventBus.setSampling(TestEvent2.class, 1.5);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        eventBus.unregister(subscriber);
+    }
+
+    public void testJournalRestoreAndAttach() throws Exception {
+        EventCodec codec = new EventCodec() {
+            @Override
+            public boolean canEncode(@NonNull Object event) {
+                return event instanceof String;
+            }
+
+            @Override
+            public void encode(@NonNull Object event, @NonNull DataOutput output) throws IOException {
+                output.writeUTF((String) event);
+            }
+
+            @NonNull
+            @Override
+            public Object decode(@NonNull DataInput input) throws IOException {
+                return input.readUTF();
+            }
+        };
+        File file = File.createTempFile("gimbus", ".journal");
+        EventJournal journal = null;
+        try {
+            journal = new EventJournal(file, codec, 4096);
+            journal.append("a");
+            journal.append("b");
+
+            //the next start, the restored sticky event is delivered to the journal when attached, it is not journaled again
+            journal = new EventJournal(file, codec, 4096);
+            assertEquals(1, journal.restoreSticky());
+            EventBus eventBus = new EventBus();
+            journal.attach(eventBus, String.class);
+            assertEquals(Arrays.<Object>asList("a", "b"), journal.read());
+
+            //new events are journaled
+            eventBus.send("c");
+            assertEquals(Arrays.<Object>asList("a", "b", "c"), journal.read());
+        } finally {
+            if (journal != null) {
+                journal.detach();
+            }
+            Cache.stickyEvents.remove(String.class);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    public void testSlowHandlerWatchdog() throws Exception {
+        EventBus eventBus = new EventBus();
+        final List<SlowHandlerReport> reports = Collections.synchronizedList(new ArrayList<SlowHandlerReport>());
+        eventBus.setSlowHandlerWatchdog(50, TimeUnit.MILLISECONDS, new SlowHandlerListener() {
+            @Override
+            public void onSlowHandler(@NonNull SlowHandlerReport report) {
+                reports.add(report);
+            }
+        });
+        Object subscriber = new Object() {
+
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onTestEvent1(TestEvent1 event) {
+            }
+
+            @Subscribe(EventBus.DELIVER_IN_DISPATCHER_THREAD)
+            void onTestEvent2(TestEvent2 event) throws InterruptedException {
+                Thread.sleep(200);
+            }
+        };
+        eventBus.register(subscriber);
+
+        for (int i = 0; i < 100; i++) {
+            eventBus.send(new TestEvent1());
+        }
+        assertTrue(reports.isEmpty());
+
+        eventBus.send(new TestEvent2());
+        assertEquals(1, reports.size());
+        SlowHandlerReport report = reports.get(0);
+        assertEquals(subscriber.getClass(), report.subscriberClass);
+        assertEquals("onTestEvent2", report.methodName);
+        assertEquals(TestEvent2.class, report.eventClass);
+        assertEquals(Thread.currentThread().getName(), report.threadName);
+        //captured while still sleeping in the handler
+        boolean inHandler = false;
+        for (StackTraceElement element : report.stackTrace) {
+            inHandler |= element.getMethodName().equals("onTestEvent2");
+        }
+        assertTrue(inHandler);
+
+        //stopped
+        eventBus.setSlowHandlerWatchdog(0, TimeUnit.MILLISECONDS, null);
+        eventBus.send(new TestEvent2());
+        assertEquals(1, reports.size());
+        eventBus.unregister(subscriber);
+    }
 }
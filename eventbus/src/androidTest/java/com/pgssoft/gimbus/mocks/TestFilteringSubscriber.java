@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.pgssoft.gimbus.mocks;
+
+import com.pgssoft.gimbus.EventBus;
+import com.pgssoft.gimbus.Subscribe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class TestFilteringSubscriber {
+    public List<Object> events = new ArrayList<>();
+    public List<Thread> filterThreads = new ArrayList<>();
+    public Object relevantKey;
+
+    @Subscribe(value = EventBus.DELIVER_IN_DISPATCHER_THREAD, filter = "isRelevant")
+    public void onTestKeyedEvent(TestKeyedEvent event) {
+        events.add(event);
+    }
+
+    boolean isRelevant(TestKeyedEvent event) {
+        filterThreads.add(Thread.currentThread());
+        return relevantKey != null && relevantKey.equals(event.getEventKey());
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.pgssoft.gimbus.mocks;
+
+import com.pgssoft.gimbus.EventBus;
+import com.pgssoft.gimbus.Subscribe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+public class TestRateLimitedSubscriber {
+    public List<Object> debouncedEvents = Collections.synchronizedList(new ArrayList<Object>());
+    public List<String> debouncedThreads = Collections.synchronizedList(new ArrayList<String>());
+    public List<Object> throttledEvents = Collections.synchronizedList(new ArrayList<Object>());
+
+    @Subscribe(value = EventBus.DELIVER_IN_DISPATCHER_THREAD, debounceMs = 100)
+    public void onTestEvent1(TestEvent1 event) {
+        debouncedThreads.add(Thread.currentThread().getName());
+        debouncedEvents.add(event);
+    }
+
+    @Subscribe(value = EventBus.DELIVER_IN_DISPATCHER_THREAD, throttleMs = 200)
+    public void onTestEvent2(TestEvent2 event) {
+        throttledEvents.add(event);
+    }
+
+}
@@ -13,12 +13,15 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -35,7 +38,18 @@ import java.util.concurrent.ConcurrentHashMap;
      * Key: event class
      * Value: list of classes/interfaces
      */
-    static final Map<Class<?>, List<Class<?>>> mEventClassHierarchyCache = new ConcurrentHashMap<>();
+    static final ClassKeyedCache<List<Class<?>>> mEventClassHierarchyCache = new ClassKeyedCache<>();
+
+    /**
+     * Computes the event class hierarchy for the mEventClassHierarchyCache, once per event class.
+     */
+    static final ClassKeyedCache.Loader<List<Class<?>>> EVENT_CLASSES_LOADER = new ClassKeyedCache.Loader<List<Class<?>>>() {
+        @NonNull
+        @Override
+        public List<Class<?>> load(@NonNull Class<?> eventClass) {
+            return buildEventClasses(eventClass);
+        }
+    };
 
     /**
      * Get list of classes implemented by event object.
@@ -43,41 +57,42 @@ import java.util.concurrent.ConcurrentHashMap;
      */
     @NonNull
     static List<Class<?>> getEventClasses(@NonNull final Object event) {
+        //if event was not cached yet, it will be cached now. Scanning of one class does not block other classes.
+        return mEventClassHierarchyCache.get(event.getClass(), EVENT_CLASSES_LOADER);
+    }
+
+    /**
+     * Same as {@link #getEventClasses(Object)}, but for the event class.
+     */
+    @NonNull
+    static List<Class<?>> getEventClasses(@NonNull final Class<?> eventClass) {
+        return mEventClassHierarchyCache.get(eventClass, EVENT_CLASSES_LOADER);
+    }
+
+    @NonNull
+    static List<Class<?>> buildEventClasses(@NonNull final Class<?> eventClass) {
         //Note: lists are created once and never modified, created in one thread, and used by many thread afterwards.
         //No need to use thread safe collections.
 
-        Class<?> eventClass = event.getClass();
-        List<Class<?>> classes = mEventClassHierarchyCache.get(eventClass);
-        //if event was not cached yet, cache it
-        if (classes == null) {
-            synchronized (mEventClassHierarchyCache) {
-                //make sure another thread didn't cached it when we waited for synchronization.
-                classes = mEventClassHierarchyCache.get(eventClass);
-                if (classes == null) {
-                    //Optimization:
-                    //In sane production code an event should have two classes (Object.class and event class).
-                    //In rare cases and event hierarchy is created. Or event implementing an interface.
-                    //But Android's ArrayList minimum grow is 12 elements, leaving empty space.
-                    //To minimize memory footprint, but not impact performance, I choose 4 as initial size, it is enough for common cases.
-                    classes = new ArrayList<>(4);
-                    List<Class<?>> parents = new LinkedList<>();
-                    parents.add(eventClass);
-
-                    while (!parents.isEmpty()) {
-                        Class<?> clazz = parents.remove(0);
-                        classes.add(clazz);
-
-                        Class<?> parent = clazz.getSuperclass();
-                        if (parent != null) {
-                            parents.add(parent);
-                        }
-                        Collections.addAll(classes, clazz.getInterfaces());
-                    }
-                    mEventClassHierarchyCache.put(eventClass, classes);
-                }
+        //Optimization:
+        //In sane production code an event should have two classes (Object.class and event class).
+        //In rare cases and event hierarchy is created. Or event implementing an interface.
+        //But Android's ArrayList minimum grow is 12 elements, leaving empty space.
+        //To minimize memory footprint, but not impact performance, I choose 4 as initial size, it is enough for common cases.
+        List<Class<?>> classes = new ArrayList<>(4);
+        List<Class<?>> parents = new LinkedList<>();
+        parents.add(eventClass);
+
+        while (!parents.isEmpty()) {
+            Class<?> clazz = parents.remove(0);
+            classes.add(clazz);
+
+            Class<?> parent = clazz.getSuperclass();
+            if (parent != null) {
+                parents.add(parent);
             }
+            Collections.addAll(classes, clazz.getInterfaces());
         }
-
         return classes;
     }
 
@@ -91,7 +106,7 @@ import java.util.concurrent.ConcurrentHashMap;
      * Second map key: an event class
      * Value: a linked-list of event handlers for the combination of the subscriber class and event class
      */
-    static final Map<Class<?>, Map<Class<?>, EventHandlersCacheItem>> mEventHandlersCache = new ConcurrentHashMap<>();
+    static final ClassKeyedCache<Map<Class<?>, EventHandlersCacheItem>> mEventHandlersCache = new ClassKeyedCache<>();
 
     /**
      * Cache of events, that should be stored and delivered to every new subscriber as soon as it gets registered
@@ -110,20 +125,119 @@ import java.util.concurrent.ConcurrentHashMap;
     static class EventHandlersCacheItem {
         @NonNull
         final Method eventHandlerMethod;
+        @Nullable
+        final Method filterMethod;
+        @EventBus.DeliveryThread
+        final int deliveryThread;
+        final boolean immediate;
+        final long debounceMs;
+        final long throttleMs;
         @NonNull
         final Dispatcher.DispatchingMethod dispatchingMethod;
         @Nullable
         final EventHandlersCacheItem nextItem;
 
         EventHandlersCacheItem(@NonNull final Method eventHandlerMethod,
-                               @NonNull final Dispatcher.DispatchingMethod dispatchingMethod,
+                               @Nullable final Method filterMethod,
+                               @EventBus.DeliveryThread final int deliveryThread,
+                               final boolean immediate,
+                               final long debounceMs,
+                               final long throttleMs,
                                @Nullable final EventHandlersCacheItem nextItem) {
             this.eventHandlerMethod = eventHandlerMethod;
-            this.dispatchingMethod = dispatchingMethod;
+            this.filterMethod = filterMethod;
+            this.deliveryThread = deliveryThread;
+            this.immediate = immediate;
+            this.debounceMs = debounceMs;
+            this.throttleMs = throttleMs;
+            this.dispatchingMethod = Dispatcher.getDispatchingMethod(deliveryThread);
             this.nextItem = nextItem;
         }
     }
 
+    /**
+     * Scans the subscriber class for the mEventHandlersCache, once per subscriber class.
+     */
+    static final ClassKeyedCache.Loader<Map<Class<?>, EventHandlersCacheItem>> EVENT_HANDLERS_LOADER = new ClassKeyedCache.Loader<Map<Class<?>, EventHandlersCacheItem>>() {
+        @NonNull
+        @Override
+        public Map<Class<?>, EventHandlersCacheItem> load(@NonNull Class<?> subscriberClass) {
+            return scanForEventHandlers(subscriberClass);
+        }
+    };
+
+    /**
+     * Fills the caches for given class, so the first register() or post() will not have to scan it.
+     * <p/>
+     * The class is scanned as a subscriber class, with all its superclasses, and the hierarchies of
+     * all concrete event classes it handles are cached too. If it has no event handlers at all, it
+     * is considered an event class, and its hierarchy is cached.
+     */
+    static void preload(@NonNull final Class<?> clazz) {
+        boolean hasEventHandlers = false;
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Class<?> eventClass : scanIfSubscriber(current).keySet()) {
+                hasEventHandlers = true;
+                //events are posted as instances of concrete classes, there is no point to cache interfaces
+                if (isConcrete(eventClass)) {
+                    getEventClasses(eventClass);
+                }
+            }
+        }
+        if (!hasEventHandlers && isConcrete(clazz)) {
+            getEventClasses(clazz);
+        }
+    }
+
+    /**
+     * Same as the cache lookup, but the scan result is cached only if the class has event handlers,
+     * so the preloaded event classes and their superclasses do not take the subscriber cache slots.
+     */
+    @NonNull
+    static Map<Class<?>, EventHandlersCacheItem> scanIfSubscriber(@NonNull final Class<?> clazz) {
+        Map<Class<?>, EventHandlersCacheItem> eventHandlers = mEventHandlersCache.peek(clazz);
+        if (eventHandlers == null) {
+            eventHandlers = scanForEventHandlers(clazz);
+            if (!eventHandlers.isEmpty()) {
+                mEventHandlersCache.putIfAbsent(clazz, eventHandlers);
+            }
+        }
+        return eventHandlers;
+    }
+
+    static boolean isConcrete(@NonNull final Class<?> clazz) {
+        return !clazz.isInterface() && !Modifier.isAbstract(clazz.getModifiers());
+    }
+
+    /**
+     * Names of all subscriber and event classes cached so far, in the order they were first used.
+     */
+    @NonNull
+    static List<String> getPreloadProfile() {
+        Set<String> classNames = new LinkedHashSet<>();
+        for (Class<?> subscriberClass : mEventHandlersCache.keys()) {
+            classNames.add(subscriberClass.getName());
+        }
+        for (Class<?> eventClass : mEventClassHierarchyCache.keys()) {
+            classNames.add(eventClass.getName());
+        }
+        return new ArrayList<>(classNames);
+    }
+
+    /**
+     * Removes all cached data of classes loaded by given ClassLoader (or its descendants), so it
+     * can be garbage collected. Sticky events of such classes are removed too.
+     */
+    static void evict(@NonNull final ClassLoader classLoader) {
+        mEventClassHierarchyCache.evict(classLoader);
+        mEventHandlersCache.evict(classLoader);
+        for (Class<?> stickyEventClass : stickyEvents.keySet()) {
+            if (ClassKeyedCache.isLoadedBy(stickyEventClass, classLoader)) {
+                stickyEvents.remove(stickyEventClass);
+            }
+        }
+    }
+
     /**
      * Finds all methods on subscriber that can be used as event handlers, creating and EventHandler
      * for every suitable method.
@@ -133,6 +247,17 @@ import java.util.concurrent.ConcurrentHashMap;
      */
     @NonNull
     static Map<Class<?>, List<EventHandler>> findAllEventHandlersForSubscriber(@NonNull final Object subscriber) {
+        return findAllEventHandlersForSubscriber(subscriber, null, false);
+    }
+
+    /**
+     * Same as {@link #findAllEventHandlersForSubscriber(Object)}, but the event handlers are bound to
+     * the subscriber default thread, and can reference the subscriber strongly.
+     */
+    @NonNull
+    static Map<Class<?>, List<EventHandler>> findAllEventHandlersForSubscriber(@NonNull final Object subscriber,
+                                                                               @Nullable final DefaultThread defaultThread,
+                                                                               final boolean strongReference) {
         //Note: both Map and Lists returned from this method are intermediate objects only,
         //used in this one thread only, no thread safety needed.
 
@@ -141,17 +266,8 @@ import java.util.concurrent.ConcurrentHashMap;
         Class<?> currentSubscriberClass = subscriber.getClass();
         while (currentSubscriberClass != Object.class) {
             //get cached list of available event handlers for subscriber type, create one if no cached yet
-            Map<Class<?>, EventHandlersCacheItem> cachedEventHandlers = mEventHandlersCache.get(currentSubscriberClass);
-            if (cachedEventHandlers == null) {
-                synchronized (mEventHandlersCache) {
-                    //check again, some other thread could finish scanning when we waited for synchronisation
-                    cachedEventHandlers = mEventHandlersCache.get(currentSubscriberClass);
-                    if (cachedEventHandlers == null) {
-                        cachedEventHandlers = scanForEventHandlers(currentSubscriberClass);
-                        mEventHandlersCache.put(currentSubscriberClass, cachedEventHandlers);
-                    }
-                }
-            }
+            //scanning is done once per class, other classes can be scanned in parallel.
+            Map<Class<?>, EventHandlersCacheItem> cachedEventHandlers = mEventHandlersCache.get(currentSubscriberClass, EVENT_HANDLERS_LOADER);
 
             //create EventHandler instances for subscriber.
             //Key: event class
@@ -165,7 +281,7 @@ import java.util.concurrent.ConcurrentHashMap;
                     result.put(entry.getKey(), eventHandlersByEventClass);
                 }
                 for (EventHandlersCacheItem cacheItem = entry.getValue(); cacheItem != null; cacheItem = cacheItem.nextItem) {
-                    eventHandlersByEventClass.add(new EventHandler(subscriber, cacheItem.eventHandlerMethod, cacheItem.dispatchingMethod));
+                    eventHandlersByEventClass.add(new EventHandler(subscriber, cacheItem, defaultThread, strongReference));
                 }
             }
             currentSubscriberClass = currentSubscriberClass.getSuperclass();
@@ -173,6 +289,21 @@ import java.util.concurrent.ConcurrentHashMap;
         return result;
     }
 
+    /**
+     * @return the event classes handled by the subscriber class, and its superclasses, from the cache,
+     * without creating the event handlers.
+     */
+    @NonNull
+    static Set<Class<?>> getEventTypes(@NonNull final Class<?> subscriberClass) {
+        Set<Class<?>> result = new LinkedHashSet<>();
+        Class<?> currentSubscriberClass = subscriberClass;
+        while (currentSubscriberClass != Object.class) {
+            result.addAll(mEventHandlersCache.get(currentSubscriberClass, EVENT_HANDLERS_LOADER).keySet());
+            currentSubscriberClass = currentSubscriberClass.getSuperclass();
+        }
+        return result;
+    }
+
     /**
      * Scans single level of the subscriber class, finds any method annotated with the @Subscribe annotation,
      * builds a Map for cache.
@@ -195,10 +326,35 @@ import java.util.concurrent.ConcurrentHashMap;
                             + parameterTypes.length + " arguments. Method must require a single argument.");
                 }
                 Class<?> eventType = parameterTypes[0];
-                eventHandlers.put(eventType, new EventHandlersCacheItem(method, Dispatcher.getDispatchingMethod(annotation), eventHandlers.get(eventType)));
+                Method filterMethod = annotation.filter().isEmpty() ? null : findFilterMethod(subscriberClass, annotation.filter(), eventType);
+                if (annotation.debounceMs() < 0 || annotation.throttleMs() < 0 || (annotation.debounceMs() > 0 && annotation.throttleMs() > 0)) {
+                    throw new IllegalStateException("Method " + method + " has invalid @Subscribe annotation. debounceMs and throttleMs "
+                            + "can't be negative, and only one of them can be used.");
+                }
+                eventHandlers.put(eventType, new EventHandlersCacheItem(method, filterMethod, annotation.value(), annotation.immediate(),
+                        annotation.debounceMs(), annotation.throttleMs(), eventHandlers.get(eventType)));
             }
         }
 
         return eventHandlers;
     }
+
+    /**
+     * Finds the filter method named in the @Subscribe, it have to be declared in the same class,
+     * accept the event, and return boolean.
+     */
+    @NonNull
+    static Method findFilterMethod(@NonNull final Class<?> subscriberClass, @NonNull final String name, @NonNull final Class<?> eventType) {
+        final Method filterMethod;
+        try {
+            filterMethod = subscriberClass.getDeclaredMethod(name, eventType);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Filter method " + name + "(" + eventType.getName() + ") not found in "
+                    + subscriberClass.getName() + ".");
+        }
+        if (filterMethod.getReturnType() != boolean.class) {
+            throw new IllegalStateException("Filter method " + filterMethod + " must return boolean.");
+        }
+        return filterMethod;
+    }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+/**
+ * Snapshot of the statistics of one of the event bus metadata caches.
+ * <p/>
+ * Hits and misses are counted only when enabled, see {@link EventBus#setMetadataCacheStatisticsEnabled(boolean)}.
+ */
+public final class CacheStatistics {
+
+    public final long hitCount;
+
+    public final long missCount;
+
+    public final long evictionCount;
+
+    public final int size;
+
+    /*package*/ CacheStatistics(long hitCount, long missCount, long evictionCount, int size) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStatistics{hits=" + hitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + ", size=" + size + "}";
+    }
+}
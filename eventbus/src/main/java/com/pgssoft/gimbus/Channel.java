@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A typed handle for posting events of one class, created by {@link EventBus#channel(Class)}.
+ * <p/>
+ * The channel keeps a precomputed array of all event handlers that accept its event class (registered
+ * for the class itself, its superclasses and interfaces). The array is rebuilt by the event bus whenever
+ * the registry changes, so posting through the channel needs no class hierarchy or registry lookups.
+ * Only the {@link KeyedEvent}s still need a lookup in the keyed subscribers index.
+ * <p/>
+ * Events are routed as if they were exactly of the channel class, so the channel accepts only instances
+ * of this exact class. Post instances of subclasses through the event bus itself.
+ */
+public final class Channel<T> {
+
+    @NonNull
+    final EventBus mEventBus;
+
+    @NonNull
+    final Class<T> mEventClass;
+
+    /**
+     * The event class hierarchy, the event types that are routed to this channel handlers.
+     */
+    @NonNull
+    final List<Class<?>> mEventClasses;
+
+    /**
+     * Snapshot of the event handlers of all mEventClasses, replaced as a whole, never modified.
+     */
+    @NonNull
+    volatile EventHandler[] mEventHandlers = new EventHandler[0];
+
+    /*package*/ Channel(@NonNull EventBus eventBus, @NonNull Class<T> eventClass) {
+        mEventBus = eventBus;
+        mEventClass = eventClass;
+        mEventClasses = Cache.getEventClasses(eventClass);
+        update();
+    }
+
+    /**
+     * @return the class of events posted through this channel.
+     */
+    @NonNull
+    public Class<T> getEventClass() {
+        return mEventClass;
+    }
+
+    /**
+     * Same as {@link EventBus#post(Object)}, without the per-post lookups.
+     *
+     * @param event @NonNull event to post, have to be exactly of the channel class.
+     * @throws IllegalArgumentException if the event is of a subclass of the channel class.
+     */
+    public void post(@NonNull T event) {
+        mEventBus.enqueue(checkEvent(event), this);
+    }
+
+    /**
+     * Same as {@link EventBus#send(Object)}, without the per-post lookups.
+     *
+     * @param event @NonNull event to send, have to be exactly of the channel class.
+     * @throws IllegalArgumentException if the event is of a subclass of the channel class.
+     */
+    public void send(@NonNull T event) {
+        if (mEventBus.admitEvent(checkEvent(event))) {
+            new Dispatcher(mEventBus, event, null, this).run();
+        }
+    }
+
+    @NonNull
+    T checkEvent(@NonNull T event) {
+        if (event.getClass() != mEventClass) {
+            throw new IllegalArgumentException("Channel of " + mEventClass.getName()
+                    + " can not route event of " + event.getClass().getName());
+        }
+        return event;
+    }
+
+    /**
+     * Rebuilds the event handlers snapshot, called by the event bus after its registry was changed.
+     * <p/>
+     * Synchronized, so a rebuild that started before the last registry change can not publish its
+     * outdated snapshot after the rebuild that started later.
+     */
+    synchronized void update() {
+        List<EventHandler> eventHandlers = new ArrayList<>();
+        for (Class<?> eventType : mEventClasses) {
+            Set<EventHandler> registeredEventHandlersForEventType = mEventBus.mRegisteredEventHandlersByEventType.get(eventType);
+            if (registeredEventHandlersForEventType != null) {
+                eventHandlers.addAll(registeredEventHandlersForEventType);
+            }
+        }
+        mEventHandlers = eventHandlers.toArray(new EventHandler[eventHandlers.size()]);
+    }
+}
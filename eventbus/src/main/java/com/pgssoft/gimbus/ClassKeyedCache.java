@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of class related metadata, keyed by Class, used by the {@link Cache}.
+ * <p/>
+ * Reads are lock-free, it is a plain ConcurrentHashMap lookup. Writes take a lock, so the map and the
+ * insertion order are updated together. On top of the map it adds:
+ * <ul>
+ * <li>per-key, load-once population, see {@link #get(Class, Loader)};</li>
+ * <li>optional size bound - when exceeded, the oldest inserted entries are evicted (FIFO, as LRU
+ * would need a write on every read);</li>
+ * <li>eviction of all entries of a ClassLoader, see {@link #evict(ClassLoader)};</li>
+ * <li>optional hit / miss statistics, disabled by default to keep the read path free of shared writes.</li>
+ * </ul>
+ * Note: there is no ClassValue on Android, and weak keys would not help here - every cached value
+ * (Methods, Class lists) strongly references its key class, so the key would never be collected.
+ * Instead, the classes of an unloaded plugin have to be evicted explicitly by its ClassLoader.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class ClassKeyedCache<V> {
+
+    /**
+     * Computes the value for the key, when it is not cached yet.
+     */
+    interface Loader<V> {
+        @NonNull
+        V load(@NonNull Class<?> key);
+    }
+
+    final ConcurrentHashMap<Class<?>, V> mEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Keys in the insertion order, used to find eviction candidates when the cache is bounded.
+     * Guarded by itself, it is the lock of all writes, so it always holds the keys of mEntries.
+     */
+    final LinkedHashSet<Class<?>> mInsertionOrder = new LinkedHashSet<>();
+
+    /**
+     * Loads in progress, so each key is loaded once, without locking the whole cache.
+     */
+    final ConcurrentHashMap<Class<?>, FutureTask<V>> mLoading = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum number of entries, 0 means unbounded.
+     */
+    volatile int mMaxSize = 0;
+
+    volatile boolean mRecordStatistics = false;
+
+    final AtomicLong mHits = new AtomicLong();
+    final AtomicLong mMisses = new AtomicLong();
+    final AtomicLong mEvictions = new AtomicLong();
+
+    @Nullable
+    V get(@NonNull Class<?> key) {
+        V value = mEntries.get(key);
+        if (mRecordStatistics) {
+            (value != null ? mHits : mMisses).incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Gets the value, loading it if not cached yet.
+     * <p/>
+     * Every key is loaded only once, even if many threads ask for it at the same time - the other threads
+     * wait for the result. But threads loading different keys do not block each other, and threads
+     * reading already cached keys never block.
+     */
+    @NonNull
+    V get(@NonNull Class<?> key, @NonNull Loader<V> loader) {
+        V value = get(key);
+        return value != null ? value : load(key, loader);
+    }
+
+    @NonNull
+    V load(@NonNull final Class<?> key, @NonNull final Loader<V> loader) {
+        FutureTask<V> task = mLoading.get(key);
+        if (task == null) {
+            FutureTask<V> newTask = new FutureTask<>(new Callable<V>() {
+                @Override
+                public V call() {
+                    //check again, some other thread could finish loading just before this task was published
+                    V value = mEntries.get(key);
+                    if (value == null) {
+                        value = loader.load(key);
+                        put(key, value);
+                    }
+                    return value;
+                }
+            });
+            task = mLoading.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                } finally {
+                    mLoading.remove(key, newTask);
+                }
+            }
+        }
+        return getResult(task);
+    }
+
+    /**
+     * Same as {@link #get(Class)}, but not counted in the statistics.
+     */
+    @Nullable
+    V peek(@NonNull Class<?> key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Puts the value only if there is no value for the key yet, existing value is never replaced.
+     */
+    void putIfAbsent(@NonNull Class<?> key, @NonNull V value) {
+        synchronized (mInsertionOrder) {
+            if (mEntries.putIfAbsent(key, value) == null) {
+                mInsertionOrder.add(key);
+                trim();
+            }
+        }
+    }
+
+    void put(@NonNull Class<?> key, @NonNull V value) {
+        synchronized (mInsertionOrder) {
+            if (mEntries.put(key, value) == null) {
+                mInsertionOrder.add(key);
+                trim();
+            }
+        }
+    }
+
+    void remove(@NonNull Class<?> key) {
+        synchronized (mInsertionOrder) {
+            if (mEntries.remove(key) != null) {
+                mInsertionOrder.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return snapshot of the cached keys, in the insertion order.
+     */
+    @NonNull
+    List<Class<?>> keys() {
+        synchronized (mInsertionOrder) {
+            return new ArrayList<>(mInsertionOrder);
+        }
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    void clear() {
+        synchronized (mInsertionOrder) {
+            mEntries.clear();
+            mInsertionOrder.clear();
+        }
+    }
+
+    void setMaxSize(int maxSize) {
+        synchronized (mInsertionOrder) {
+            mMaxSize = Math.max(0, maxSize);
+            trim();
+        }
+    }
+
+    /**
+     * Removes all entries for classes loaded by given ClassLoader, or by any of its descendants.
+     */
+    void evict(@NonNull ClassLoader classLoader) {
+        synchronized (mInsertionOrder) {
+            for (Iterator<Class<?>> iterator = mInsertionOrder.iterator(); iterator.hasNext(); ) {
+                Class<?> key = iterator.next();
+                if (isLoadedBy(key, classLoader)) {
+                    iterator.remove();
+                    mEntries.remove(key);
+                    mEvictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @NonNull
+    CacheStatistics getStatistics() {
+        return new CacheStatistics(mHits.get(), mMisses.get(), mEvictions.get(), mEntries.size());
+    }
+
+    /**
+     * Evicts the oldest entries over the size bound, call it holding the mInsertionOrder lock.
+     */
+    void trim() {
+        final int maxSize = mMaxSize;
+        if (maxSize > 0) {
+            for (Iterator<Class<?>> iterator = mInsertionOrder.iterator(); mInsertionOrder.size() > maxSize; ) {
+                mEntries.remove(iterator.next());
+                iterator.remove();
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits for the loading task, not interruptible, re-throws the original loading exception.
+     */
+    @NonNull
+    static <V> V getResult(@NonNull FutureTask<V> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static boolean isLoadedBy(@NonNull Class<?> clazz, @NonNull ClassLoader classLoader) {
+        for (ClassLoader loader = clazz.getClassLoader(); loader != null; loader = loader.getParent()) {
+            if (loader == classLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives events of a functional subscription, see {@link EventBus#subscribe(Class, int, Consumer)}.
+ * <p/>
+ * It is an equivalent of the java.util.function.Consumer, which is not available on older Android
+ * versions. With retrolambda or Jack, a lambda can be passed.
+ */
+public interface Consumer<T> {
+
+    /**
+     * Handles the event, called in the thread requested at subscription.
+     */
+    void accept(@NonNull T event);
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.os.Handler;
+import android.support.annotation.Nullable;
+
+/**
+ * The default delivery thread of one subscriber, shared by all its EventHandlers.
+ * <p/>
+ * It is resolved when the subscriber gets registered, or assigned to other thread, so the dispatch
+ * of DELIVER_IN_DEFAULT_THREAD events is a field read, with no map lookup.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class DefaultThread {
+
+    /**
+     * Handler of the subscriber thread, null if the thread has no Looper.
+     * Replaced in one write when the subscriber gets assigned to other thread.
+     */
+    @Nullable
+    volatile Handler mHandler;
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debounce or throttle of one event handler, from @Subscribe(debounceMs) or @Subscribe(throttleMs).
+ * <p/>
+ * Checked by the Dispatcher, after the filter, so the held or dropped events never get a Deliverer.
+ * Throttle lets the first event of every period through, and drops the others, with a CAS only.
+ * Debounce holds the last event, and delivers it from the dispatcher thread when no other event came
+ * for the period: the timer runs in the dispatcher thread Handler, and passes the event to the ring dispatcher
+ * thread, when the ring dispatch is enabled, so the handler is still called in the one dispatcher thread. One timer is posted per burst: when it fires too early, as newer events moved the
+ * deadline, it is posted again for the remaining time, instead of being re-posted on every event.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class DeliveryLimiter implements Runnable {
+
+    @NonNull
+    final EventHandler mEventHandler;
+
+    final long mDebounceMs;
+
+    final long mThrottleMs;
+
+    /**
+     * End of the current throttle period, in the uptime millis.
+     */
+    final AtomicLong mThrottleEnd = new AtomicLong(Long.MIN_VALUE);
+
+    //debounce state, guarded by this
+    @Nullable
+    Object mPendingEvent;
+    @Nullable
+    EventBus mPendingEventBus;
+    long mDeadline;
+    boolean mScheduled;
+
+    DeliveryLimiter(@NonNull EventHandler eventHandler, long debounceMs, long throttleMs) {
+        mEventHandler = eventHandler;
+        mDebounceMs = debounceMs;
+        mThrottleMs = throttleMs;
+    }
+
+    /**
+     * @return true if the event should be dispatched now, false if it was dropped or held.
+     */
+    boolean admit(@NonNull Dispatcher dispatcher) {
+        final long now = SystemClock.uptimeMillis();
+        if (mThrottleMs > 0) {
+            final long throttleEnd = mThrottleEnd.get();
+            //only one of the concurrently dispatched events wins the CAS
+            return now >= throttleEnd && mThrottleEnd.compareAndSet(throttleEnd, now + mThrottleMs);
+        }
+        synchronized (this) {
+            mPendingEvent = dispatcher.mEvent;
+            mPendingEventBus = dispatcher.mEventBus;
+            mDeadline = now + mDebounceMs;
+            if (!mScheduled) {
+                mScheduled = true;
+                dispatcher.mEventBus.mDispatcherThread.postDelayed(this, mDebounceMs);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the held event, called when the event handler is unregistered.
+     */
+    void cancel() {
+        synchronized (this) {
+            mPendingEvent = null;
+            mPendingEventBus = null;
+        }
+    }
+
+    /**
+     * The debounce timer, in the dispatcher thread Handler.
+     */
+    @Override
+    public void run() {
+        final Object event;
+        final EventBus eventBus;
+        synchronized (this) {
+            if (mPendingEvent == null || mPendingEventBus == null) {
+                mScheduled = false;
+                return;
+            }
+            final long remaining = mDeadline - SystemClock.uptimeMillis();
+            if (remaining > 0) {
+                mPendingEventBus.mDispatcherThread.postDelayed(this, remaining);
+                return;
+            }
+            event = mPendingEvent;
+            eventBus = mPendingEventBus;
+            mPendingEvent = null;
+            mPendingEventBus = null;
+            mScheduled = false;
+        }
+        final RingDispatcher ringDispatcher = eventBus.mRingDispatcher;
+        if (ringDispatcher != null) {
+            ringDispatcher.publish(event, this);
+        } else {
+            deliver(eventBus, event);
+        }
+    }
+
+    /**
+     * Delivers the held event, in the dispatcher thread, the ring dispatcher thread if enabled.
+     */
+    void deliver(@NonNull EventBus eventBus, @NonNull Object event) {
+        if (mEventHandler.getSubscriber() != null) {
+            mEventHandler.mDispatchingMethod.dispatch(new Dispatcher(eventBus, event, null), mEventHandler);
+        }
+    }
+}
@@ -9,10 +9,14 @@
 package com.pgssoft.gimbus;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Dispatcher is an class used to process posted event.
@@ -39,7 +43,9 @@ import java.util.Set;
     final static DispatchingMethod IN_UI_THREAD = new DispatchingMethod() {
         @Override
         public void dispatch(@NonNull Dispatcher dispatcher, @NonNull EventHandler eventHandler) {
-            EventBus.mUiThreadHandler.post(new Deliverer(dispatcher.mEventBus, dispatcher.mEvent, eventHandler));
+            if (!deliverImmediately(dispatcher, eventHandler, EventBus.mUiThreadHandler.getLooper())) {
+                postToUiThread(dispatcher.mEventBus, new Deliverer(dispatcher.mEventBus, dispatcher.mEvent, eventHandler));
+            }
         }
     };
 
@@ -53,32 +59,85 @@ import java.util.Set;
     final static DispatchingMethod IN_DEFAULT_THREAD = new DispatchingMethod() {
         @Override
         public void dispatch(@NonNull Dispatcher dispatcher, @NonNull EventHandler eventHandler) {
-            Object subscriber = eventHandler.mSubscriber.get();
-            if (subscriber != null) {
-                Handler handler = dispatcher.mEventBus.getDefaultThreadForSubscriber(subscriber);
-                if (handler == null) {
-                    //fallback
-                    IN_BACKGROUND_THREAD.dispatch(dispatcher, eventHandler);
-                    return;
+            //the thread is bound at registration, no lookup here
+            DefaultThread defaultThread = eventHandler.mDefaultThread;
+            Handler handler = defaultThread != null ? defaultThread.mHandler : null;
+            if (handler == null) {
+                //fallback
+                IN_BACKGROUND_THREAD.dispatch(dispatcher, eventHandler);
+                return;
+            }
+            if (!deliverImmediately(dispatcher, eventHandler, handler.getLooper())) {
+                Deliverer deliverer = new Deliverer(dispatcher.mEventBus, dispatcher.mEvent, eventHandler);
+                if (handler == EventBus.mUiThreadHandler) {
+                    postToUiThread(dispatcher.mEventBus, deliverer);
+                } else {
+                    handler.post(deliverer);
                 }
-                handler.post(new Deliverer(dispatcher.mEventBus, dispatcher.mEvent, eventHandler));
             }
         }
     };
 
 
+    /**
+     * Maximum number of nested immediate deliveries in one thread, e.g. when an immediately delivered
+     * handler sends another event. Deeper deliveries are posted, so the stack can't overflow.
+     */
+    static final int MAX_IMMEDIATE_DEPTH = 8;
+
+    /**
+     * Current number of nested immediate deliveries in the thread.
+     */
+    static final ThreadLocal<int[]> sImmediateDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
     final EventBus mEventBus;
-    final Object mEvent;
+    /**
+     * The event, changed only when the ring dispatcher reuses the Dispatcher, see runReused().
+     */
+    Object mEvent;
     final Object mSingleSubscriber;
 
+    /**
+     * The channel the event was posted through, its precomputed event handlers are used instead
+     * of the registry lookups. Null if posted through the event bus.
+     */
+    @Nullable
+    Channel<?> mChannel;
+
+    /**
+     * The linked bus the event was forwarded from, it is not forwarded back. Null if not forwarded.
+     */
+    @Nullable
+    final EventBus mForwardedFrom;
+
     Dispatcher(@NonNull EventBus mEventBus, @NonNull Object mEvent, @Nullable Object mSingleSubscriber) {
+        this(mEventBus, mEvent, mSingleSubscriber, null, null);
+    }
+
+    Dispatcher(@NonNull EventBus mEventBus, @NonNull Object mEvent, @Nullable Object mSingleSubscriber, @Nullable Channel<?> mChannel) {
+        this(mEventBus, mEvent, mSingleSubscriber, mChannel, null);
+    }
+
+    Dispatcher(@NonNull EventBus mEventBus, @NonNull Object mEvent, @Nullable Object mSingleSubscriber, @Nullable Channel<?> mChannel,
+               @Nullable EventBus mForwardedFrom) {
         this.mEventBus = mEventBus;
         this.mEvent = mEvent;
         this.mSingleSubscriber = mSingleSubscriber;
+        this.mChannel = mChannel;
+        this.mForwardedFrom = mForwardedFrom;
     }
 
     static DispatchingMethod getDispatchingMethod(@NonNull final Subscribe subscribeAnnotation) {
-        switch (subscribeAnnotation.value()) {
+        return getDispatchingMethod(subscribeAnnotation.value());
+    }
+
+    static DispatchingMethod getDispatchingMethod(@EventBus.DeliveryThread final int deliveryThread) {
+        switch (deliveryThread) {
             case EventBus.DELIVER_IN_DEFAULT_THREAD:
                 return IN_DEFAULT_THREAD;
             case EventBus.DELIVER_IN_UI_THREAD:
@@ -94,26 +153,176 @@ import java.util.Set;
 
     @Override
     public void run() {
+        final List<Class<?>> eventTypes = mChannel != null ? mChannel.mEventClasses : Cache.getEventClasses(mEvent);
+        final boolean dispatched = dispatchAndForward(eventTypes);
+
+        //if not dispatched, send DeadEvent, but only if someone listens for it, and only as often as allowed
+        if (!dispatched && !(mEvent instanceof DeadEvent) && mEventBus.hasDeadEventHandlers()) {
+            if (mEventBus.tryAcquireDeadEventPermit()) {
+                new Dispatcher(mEventBus, new DeadEvent(mEventBus, mEvent), mSingleSubscriber).run();
+            }
+        }
+    }
+
+    /**
+     * Dispatches the event with this Dispatcher, reused by the ring dispatcher thread for all its events,
+     * so nothing is allocated per event. Nothing keeps the Dispatcher after the dispatch, the delivery
+     * methods copy the event out, so it can be reused right after.
+     */
+    void runReused(@NonNull Object event, @Nullable Channel<?> channel) {
+        mEvent = event;
+        mChannel = channel;
+        try {
+            run();
+        } finally {
+            //do not keep the last event until the next one
+            mEvent = null;
+            mChannel = null;
+        }
+    }
+
+    /**
+     * Dispatches the event to the handlers of this bus, and forwards it to the linked buses,
+     * according to the forwarding rules. The event is recorded in the replay buffers of every bus it visits.
+     *
+     * @param eventTypes the event class hierarchy.
+     * @return true if dispatched to any handler, in this bus, or in any of the linked buses.
+     */
+    boolean dispatchAndForward(@NonNull final List<Class<?>> eventTypes) {
         boolean dispatched = false;
 
-        for (Class<?> eventType : Cache.getEventClasses(mEvent)) {
-            Set<EventHandler> registeredEventHandlersForEventType = mEventBus.mRegisteredEventHandlersByEventType.get(eventType);
-            if (registeredEventHandlersForEventType != null) {
-                for (EventHandler eventHandler : registeredEventHandlersForEventType) {
-                    //skip GCed subscribers, skip other subscribers if in single subscriber mode
-                    if (mSingleSubscriber != null
-                            ? eventHandler.mSubscriber.get() == mSingleSubscriber
-                            : eventHandler.mSubscriber.get() != null) {
-                        dispatched = true;
-                        eventHandler.mDispatchingMethod.dispatch(this, eventHandler);
+        //recorded before the dispatch, so a subscriber registering meanwhile gets it at least once
+        if (mSingleSubscriber == null && !mEventBus.mReplayBuffers.isEmpty()) {
+            for (Class<?> eventType : eventTypes) {
+                ReplayBuffer replayBuffer = mEventBus.mReplayBuffers.get(eventType);
+                if (replayBuffer != null) {
+                    replayBuffer.add(mEvent);
+                }
+            }
+        }
+
+        if (mChannel != null) {
+            //the channel snapshot is taken now, not at post time, same as the registry lookup below
+            for (EventHandler eventHandler : mChannel.mEventHandlers) {
+                dispatched |= dispatch(eventHandler);
+            }
+        } else {
+            for (Class<?> eventType : eventTypes) {
+                Set<EventHandler> registeredEventHandlersForEventType = mEventBus.mRegisteredEventHandlersByEventType.get(eventType);
+                if (registeredEventHandlersForEventType != null) {
+                    for (EventHandler eventHandler : registeredEventHandlersForEventType) {
+                        dispatched |= dispatch(eventHandler);
                     }
                 }
             }
         }
-        //if not dispatched, send DeadEvent
-        if (!dispatched && !(mEvent instanceof DeadEvent)) {
-            new Dispatcher(mEventBus, new DeadEvent(mEventBus, mEvent), mSingleSubscriber).run();
+        //keyed subscribers, only the ones of the event key are visited
+        if (mEvent instanceof KeyedEvent && !mEventBus.mKeyedEventHandlersByEventType.isEmpty()) {
+            Object key = ((KeyedEvent) mEvent).getEventKey();
+            if (key != null) {
+                for (Class<?> eventType : eventTypes) {
+                    Map<Object, CopyOnWriteArraySet<EventHandler>> keyedEventHandlers = mEventBus.mKeyedEventHandlersByEventType.get(eventType);
+                    if (keyedEventHandlers != null) {
+                        Set<EventHandler> eventHandlersForKey = keyedEventHandlers.get(key);
+                        if (eventHandlersForKey != null) {
+                            for (EventHandler eventHandler : eventHandlersForKey) {
+                                dispatched |= dispatch(eventHandler);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        //linked buses, events sent to a single subscriber are not forwarded
+        if (mSingleSubscriber == null && mEventBus.hasForwardingRules()) {
+            final EventBus parent = mEventBus.mParent;
+            if (parent != null && parent != mForwardedFrom && matches(mEventBus.mForwardToParent, eventTypes)) {
+                dispatched |= forwardTo(parent, eventTypes);
+            }
+            if (matches(mEventBus.mForwardToChildren, eventTypes)) {
+                for (EventBus child : mEventBus.mChildren) {
+                    if (child != mForwardedFrom) {
+                        dispatched |= forwardTo(child, eventTypes);
+                    }
+                }
+            }
+        }
+        return dispatched;
+    }
+
+    /**
+     * Dispatches the event in the linked bus, in this thread, through its channel if it has one.
+     * The bus topology is a tree, so skipping the bus the event came from is enough to never visit a bus twice.
+     */
+    boolean forwardTo(@NonNull EventBus target, @NonNull List<Class<?>> eventTypes) {
+        return new Dispatcher(target, mEvent, null, target.mChannels.get(mEvent.getClass()), mEventBus).dispatchAndForward(eventTypes);
+    }
+
+    static boolean matches(@NonNull Set<Class<?>> forwardedEventTypes, @NonNull List<Class<?>> eventTypes) {
+        if (!forwardedEventTypes.isEmpty()) {
+            for (Class<?> eventType : eventTypes) {
+                if (forwardedEventTypes.contains(eventType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Posts the Deliverer to the UI thread, through the frame budgeted scheduler if the bus has one.
+     */
+    static void postToUiThread(@NonNull EventBus eventBus, @NonNull Deliverer deliverer) {
+        UiDeliveryScheduler scheduler = eventBus.mUiDeliveryScheduler;
+        if (scheduler != null) {
+            scheduler.execute(deliverer);
+        } else {
+            EventBus.mUiThreadHandler.post(deliverer);
+        }
+    }
+
+    /**
+     * Delivers the event in the current thread, if immediate delivery is enabled, and the current thread
+     * is the delivery thread already, and the nesting limit is not reached.
+     *
+     * @return true if delivered, false if the event have to be posted to the delivery thread.
+     */
+    static boolean deliverImmediately(@NonNull Dispatcher dispatcher, @NonNull EventHandler eventHandler, @NonNull Looper targetLooper) {
+        if (!(eventHandler.mImmediate || dispatcher.mEventBus.mImmediateDelivery) || targetLooper != Looper.myLooper()) {
+            return false;
+        }
+        int[] depth = sImmediateDepth.get();
+        if (depth[0] >= MAX_IMMEDIATE_DEPTH) {
+            return false;
+        }
+        depth[0]++;
+        try {
+            eventHandler.invoke(dispatcher.mEventBus, dispatcher.mEvent);
+        } finally {
+            depth[0]--;
+        }
+        return true;
+    }
+
+    /**
+     * Dispatches the event to one event handler.
+     *
+     * @return true if dispatched, false if the handler was skipped.
+     */
+    boolean dispatch(@NonNull EventHandler eventHandler) {
+        //skip GCed subscribers, skip other subscribers if in single subscriber mode
+        //strongly referenced subscribers are never null, and need no WeakReference dereference.
+        Object subscriber = eventHandler.getSubscriber();
+        if (mSingleSubscriber != null ? subscriber == mSingleSubscriber : subscriber != null) {
+            //the filter is checked here, so rejected events never get to the delivery thread.
+            //Note: a rejected event was still handled, it is not a DeadEvent.
+            //debounced and throttled events are held or dropped here too, before any Deliverer is created
+            if (eventHandler.accepts(mEvent) && (eventHandler.mLimiter == null || eventHandler.mLimiter.admit(this))) {
+                eventHandler.mDispatchingMethod.dispatch(this, eventHandler);
+            }
+            return true;
         }
+        return false;
     }
 
 }
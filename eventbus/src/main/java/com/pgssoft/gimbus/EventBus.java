@@ -9,6 +9,7 @@
  */
 package com.pgssoft.gimbus;
 
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -16,12 +17,21 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+
+import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -29,6 +39,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Dispatches events to subscribers handlers, and provides ways for subscribers to register themselves.
@@ -70,6 +81,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * To give the system a second chance to handle dead events, they are wrapped in an instance of
  * {@link DeadEvent} and reposted.
  * <p/>
+ * <p>The DeadEvent is created only if there is a subscriber that can accept it (for DeadEvent or Object),
+ * otherwise unhandled events cost nothing. Use {@link #setDeadEventRateLimit(int)} to limit how many
+ * DeadEvents per second are generated, so a flood of unhandled events can't double the dispatcher load.
+ * <p/>
  * <p>This class is safe for concurrent use.
  *
  * @author Lukasz Plominski (Android EventBus code)
@@ -129,6 +144,32 @@ public class EventBus {
     public @interface DeliveryThread {
     }
 
+    /**
+     * The ring dispatcher blocks on a lock when there are no events, after a short spin.
+     * Lowest CPU use, highest latency of the wait strategies, still much lower than of the Handler.
+     */
+    public static final int WAIT_BLOCKING = 0;
+
+    /**
+     * The ring dispatcher spins, then yields, then sleeps for 0.1ms at a time, when there are no events.
+     */
+    public static final int WAIT_SLEEPING = 1;
+
+    /**
+     * The ring dispatcher spins, then yields the CPU, when there are no events. Low latency, keeps one core busy.
+     */
+    public static final int WAIT_YIELDING = 2;
+
+    /**
+     * The ring dispatcher spins when there are no events. Lowest latency, uses a whole core, all the time.
+     */
+    public static final int WAIT_BUSY_SPIN = 3;
+
+    @IntDef({WAIT_BLOCKING, WAIT_SLEEPING, WAIT_YIELDING, WAIT_BUSY_SPIN})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface WaitStrategy {
+    }
+
 
     /**
      * Creates a new EventBus named "default".
@@ -148,6 +189,9 @@ public class EventBus {
         mIdentifier = identifier;
         mDispatcherThread = createDispatcherThread();
         mBackgroundExecutor = executor != null ? executor : getSharedExecutor();
+        synchronized (sBuses) {
+            sBuses.add(this);
+        }
     }
 
 
@@ -156,36 +200,210 @@ public class EventBus {
 
     /**
      * Call to register all event handlers for subscriber.
+     * <p/>
+     * Subscriber is referenced weakly, it will be unregistered automatically after it is garbage collected.
      */
     public void register(@NonNull Object subscriber) {
-        assignThreadForSubscriber(subscriber);
+        register(subscriber, false, null);
+    }
 
-        //Key: the event class to handle
-        //Value: set of event handlers that can handle this event class.
-        for (Map.Entry<Class<?>, List<EventHandler>> entry : Cache.findAllEventHandlersForSubscriber(subscriber).entrySet()) {
-            Class<?> eventType = entry.getKey();
-            CopyOnWriteArraySet<EventHandler> registeredEventHandlersForEventType = mRegisteredEventHandlersByEventType.get(eventType);
-            //If there is no Set of EventHandlers for this type of event, we have to create one. But it must be safe, no race condition, thus synchronized().
-            if (registeredEventHandlersForEventType == null) {
-                synchronized (mRegisteredEventHandlersByEventType) {
-                    //check again, maybe other thread managed to add the Set already, while this one waied for the synchronization
-                    registeredEventHandlersForEventType = mRegisteredEventHandlersByEventType.get(eventType);
-                    if (registeredEventHandlersForEventType == null) {
-                        registeredEventHandlersForEventType = new CopyOnWriteArraySet<>();
-                        mRegisteredEventHandlersByEventType.put(eventType, registeredEventHandlersForEventType);
-                    }
+    /**
+     * Call to register all event handlers for subscriber, interested in events of one key only.
+     * <p/>
+     * {@link KeyedEvent}s are delivered to such subscriber only if their key is equal to the given one,
+     * events that are not KeyedEvents are not delivered at all. The event bus routes keyed events
+     * through a hash index, so subscribers registered for other keys cost nothing on dispatch.
+     * <p/>
+     * Subscriber is referenced weakly, same as by {@link #register(Object)}. Unregister it with
+     * {@link #unregister(Object)}, this removes it from all keys.
+     *
+     * @param subscriber @NonNull the subscriber.
+     * @param key        @Nullable key of the events to receive, compared with equals().
+     *                   Pass null to register without a key, same as {@link #register(Object)}.
+     */
+    public void register(@NonNull Object subscriber, @Nullable Object key) {
+        register(subscriber, false, key);
+    }
+
+    /**
+     * Call to register all event handlers for subscriber, keeping a strong reference to it.
+     * <p/>
+     * Subscriber will be kept until it gets unregistered with {@link #unregister(Object)}, and it will
+     * not be lost if nothing else references it. This also saves a WeakReference dereference on every
+     * delivery, and the weak references processing during GC.
+     * <p/>
+     * Note: forgetting to unregister such a subscriber is a memory leak.
+     * A subscriber registered with {@link #register(Object)} already has to be unregistered first,
+     * it is not switched to the strong reference. Registering a strong subscriber again, weakly or
+     * strongly, does nothing.
+     *
+     * @throws IllegalStateException if the subscriber is registered weakly already.
+     */
+    public void registerStrong(@NonNull Object subscriber) {
+        register(subscriber, true, null);
+    }
+
+    /**
+     * Subscribes a consumer for the events of given class (including its subclasses), without an
+     * annotated subscriber class. No reflection is involved, neither to subscribe, nor to deliver.
+     * <p/>
+     * The subscription is kept by the event bus until it gets closed, with {@link Subscription#close()}.
+     * Sticky event of given class, if any, is delivered immediately.
+     *
+     * @param eventClass     @NonNull class of events to receive.
+     * @param deliveryThread the event delivery thread, same as for {@link Subscribe}.
+     * @param consumer       @NonNull receiver of the events.
+     * @return @NonNull subscription handle, close it to unsubscribe.
+     */
+    @NonNull
+    public <T> Subscription subscribe(@NonNull Class<T> eventClass, @DeliveryThread int deliveryThread, @NonNull Consumer<? super T> consumer) {
+        return subscribe(eventClass, deliveryThread, null, consumer);
+    }
+
+    /**
+     * Same as {@link #subscribe(Class, int, Consumer)}, but the consumer receives only the {@link KeyedEvent}s
+     * of given key, see {@link #register(Object, Object)}.
+     *
+     * @param key @Nullable key of the events to receive, compared with equals().
+     *            Pass null to subscribe without a key.
+     */
+    @NonNull
+    public <T> Subscription subscribe(@NonNull Class<T> eventClass, @DeliveryThread int deliveryThread, @Nullable Object key,
+                                      @NonNull Consumer<? super T> consumer) {
+        return subscribe(eventClass, deliveryThread, key, null, consumer);
+    }
+
+    /**
+     * Same as {@link #subscribe(Class, int, Object, Consumer)}, with a filter. The filter is called in
+     * the dispatcher thread, the events it rejects are not passed to the delivery thread at all.
+     *
+     * @param key    @Nullable key of the events to receive, or null to subscribe without a key.
+     * @param filter @Nullable filter of the events, cheap and thread safe, or null for no filter.
+     */
+    @NonNull
+    public <T> Subscription subscribe(@NonNull Class<T> eventClass, @DeliveryThread int deliveryThread, @Nullable Object key,
+                                      @Nullable Predicate<? super T> filter, @NonNull Consumer<? super T> consumer) {
+        //Note: the subscription default thread, if needed, is assigned by the Subscription itself
+        Subscription subscription = new Subscription(this, eventClass, deliveryThread, key, filter, consumer);
+        if (key != null) {
+            addKeyedEventHandlers(eventClass, key, Collections.singleton(subscription.mEventHandler));
+        } else if (subscription.mRegisteredEventHandlers.add(subscription.mEventHandler)) {
+            onRegistryChanged(eventClass);
+        }
+        if (!mReplayBuffers.isEmpty()) {
+            replayTo(eventClass, key, subscription, Collections.singleton(subscription.mEventHandler));
+        }
+
+        Object stickyEvent = Cache.stickyEvents.get(eventClass);
+        if (stickyEvent != null) {
+            sendTo(stickyEvent, subscription);
+        }
+        return subscription;
+    }
+
+    /**
+     * Returns the channel for posting events of given class. There is one channel per event class,
+     * repeated calls return the same instance.
+     * <p/>
+     * Posting through the channel skips resolving the event class hierarchy and the registered event
+     * handlers on every post, the channel keeps them precomputed, and updated on every register and
+     * unregister. Use it for the event classes posted very often.
+     *
+     * @param eventClass @NonNull exact class of events to post.
+     * @return @NonNull the channel.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public <T> Channel<T> channel(@NonNull Class<T> eventClass) {
+        Channel<?> channel = mChannels.get(eventClass);
+        if (channel == null) {
+            Channel<T> newChannel = new Channel<>(this, eventClass);
+            channel = mChannels.putIfAbsent(eventClass, newChannel);
+            if (channel == null) {
+                channel = newChannel;
+                //the registry could change before the channel was published, and it was not updated then
+                newChannel.update();
+            }
+        }
+        return (Channel<T>) channel;
+    }
+
+    /**
+     * Links the child bus to this bus. Events can then be forwarded between them, according to the
+     * rules set with {@link #forwardToParent(Class)} and {@link #forwardToChildren(Class)}.
+     * <p/>
+     * The buses form a tree, a bus can have one parent only, and can't be linked to its descendant.
+     *
+     * @param child @NonNull the bus to link, it have to have no parent.
+     * @throws IllegalArgumentException if the child already has a parent, or it is this bus or any of its ancestors.
+     */
+    public void addChild(@NonNull EventBus child) {
+        synchronized (sTopologyLock) {
+            if (child.mParent != null) {
+                throw new IllegalArgumentException("Bus " + child.mIdentifier + " is already a child of " + child.mParent.mIdentifier);
+            }
+            for (EventBus ancestor = this; ancestor != null; ancestor = ancestor.mParent) {
+                if (ancestor == child) {
+                    throw new IllegalArgumentException("Bus " + child.mIdentifier + " can't be a child of its descendant " + mIdentifier);
                 }
             }
-            //finally, add new event handlers to the registered handlers
-            registeredEventHandlersForEventType.addAll(entry.getValue());
+            child.mParent = this;
+            mChildren.add(child);
+        }
+    }
 
-            Object stickyEvent = Cache.stickyEvents.get(entry.getKey());
-            if (stickyEvent != null) {
-                sendTo(stickyEvent, subscriber);
+    /**
+     * Unlinks the child bus, linked with {@link #addChild(EventBus)}.
+     */
+    public void removeChild(@NonNull EventBus child) {
+        synchronized (sTopologyLock) {
+            if (mChildren.remove(child)) {
+                child.mParent = null;
             }
         }
     }
 
+    /**
+     * @return @Nullable the parent bus, null if this bus is not linked to a parent.
+     */
+    @Nullable
+    public EventBus getParent() {
+        return mParent;
+    }
+
+    /**
+     * Events of given type (including subclasses and implementing classes), dispatched in this bus,
+     * will be dispatched in the parent bus too. And from there, according to the parent bus rules,
+     * further to its parent, or to its other children.
+     * <p/>
+     * Forwarded events are dispatched in the linked buses in the same dispatcher turn, in the same
+     * thread, with no re-posting. Note: DELIVER_IN_DISPATCHER_THREAD handlers of the linked bus are
+     * called in the thread that dispatches in this bus. An event is dead only if none of the buses handled it.
+     *
+     * @param eventType @NonNull type of events to forward.
+     */
+    public void forwardToParent(@NonNull Class<?> eventType) {
+        mForwardToParent.add(eventType);
+    }
+
+    /**
+     * Events of given type (including subclasses and implementing classes), dispatched in this bus,
+     * will be dispatched in all child buses too, see {@link #forwardToParent(Class)} for details.
+     *
+     * @param eventType @NonNull type of events to forward.
+     */
+    public void forwardToChildren(@NonNull Class<?> eventType) {
+        mForwardToChildren.add(eventType);
+    }
+
+    /**
+     * Removes forwarding of given event type, both to the parent and to the children.
+     */
+    public void stopForwarding(@NonNull Class<?> eventType) {
+        mForwardToParent.remove(eventType);
+        mForwardToChildren.remove(eventType);
+    }
+
     /**
      * Unregister all event handler methods for a subscriber.
      * By the way this method also removes all subscribers that was already garbage collected.
@@ -197,21 +415,39 @@ public class EventBus {
         List<EventHandler> eventHandlersToRemove = new ArrayList<>();
         //NOTE: mRegisteredEventHandlersByEventType is a concurrent map, reads are permitted without synchronisation.
         //this method does not modify the mRegisteredEventHandlersByEventType, it modify only its values, sets of eventHandlers.
-        for (CopyOnWriteArraySet<EventHandler> eventHandlers : mRegisteredEventHandlersByEventType.values()) {
+        for (Map.Entry<Class<?>, CopyOnWriteArraySet<EventHandler>> entry : mRegisteredEventHandlersByEventType.entrySet()) {
+            CopyOnWriteArraySet<EventHandler> eventHandlers = entry.getValue();
             for (EventHandler eventHandler : eventHandlers) {
-                Object eventHandlerSubscriber = eventHandler.mSubscriber.get();
+                Object eventHandlerSubscriber = eventHandler.getSubscriber();
                 //Note: if the eventHandlerSubscriber is null, it means that object was GCed,
                 //so it should be unregistered too.
                 if (eventHandlerSubscriber == null || eventHandlerSubscriber == subscriber) {
                     //Note: the eventHandlers is a CopyOnWriteArraySet, it is much better performance-wise
                     //to remove all handlers in one steep, at the end of loop.
                     eventHandlersToRemove.add(eventHandler);
+                    cancelPendingDelivery(eventHandler);
                 }
             }
-            eventHandlers.removeAll(eventHandlersToRemove);
+            if (!eventHandlersToRemove.isEmpty() && eventHandlers.removeAll(eventHandlersToRemove)) {
+                onRegistryChanged(entry.getKey());
+            }
             eventHandlersToRemove.clear();
         }
-
+        for (Map.Entry<Class<?>, ConcurrentHashMap<Object, CopyOnWriteArraySet<EventHandler>>> entry : mKeyedEventHandlersByEventType.entrySet()) {
+            for (Map.Entry<Object, CopyOnWriteArraySet<EventHandler>> keyEntry : entry.getValue().entrySet()) {
+                for (EventHandler eventHandler : keyEntry.getValue()) {
+                    Object eventHandlerSubscriber = eventHandler.getSubscriber();
+                    if (eventHandlerSubscriber == null || eventHandlerSubscriber == subscriber) {
+                        eventHandlersToRemove.add(eventHandler);
+                        cancelPendingDelivery(eventHandler);
+                    }
+                }
+                if (!eventHandlersToRemove.isEmpty()) {
+                    removeKeyedEventHandlers(entry.getKey(), keyEntry.getKey(), eventHandlersToRemove);
+                    eventHandlersToRemove.clear();
+                }
+            }
+        }
 
         //remove related default thread handler
         for (IdentityWeakReferenceKey<Object> key : mSubscribersDefaultThreads.keySet()) {
@@ -231,20 +467,14 @@ public class EventBus {
      * it will be executed as DELIVER_IN_BACKGROUND_THREAD.
      * <p/>
      * This method can be used to re-assign the default thread for already registered object.
+     * It does nothing for a subscriber that is not registered, register() assigns the thread anyway.
      *
      * @param subscriber @NonNull a subscriber object to assign thread for.
      */
     public void assignThreadForSubscriber(@NonNull Object subscriber) {
-        Looper looper = Looper.myLooper();
-
-        if (looper != null) {
-            //Assumption: this is called always to change thread, so no check for old value.
-            mSubscribersDefaultThreads.put(
-                    new IdentityWeakReferenceKey<>(subscriber),
-                    looper != Looper.getMainLooper() ? new Handler(looper) : mUiThreadHandler
-            );
-        } else {
-            mSubscribersDefaultThreads.remove(new IdentityWeakReferenceKey<>(subscriber));
+        DefaultThread defaultThread = mSubscribersDefaultThreads.get(new IdentityWeakReferenceKey<>(subscriber));
+        if (defaultThread != null) {
+            defaultThread.mHandler = getCurrentThreadHandler();
         }
     }
 
@@ -264,7 +494,7 @@ public class EventBus {
      * @throws NullPointerException if the event is null.
      */
     public void post(@NonNull final Object event) {
-        mDispatcherThread.post(new Dispatcher(this, event, null));
+        enqueue(event, null);
     }
 
     /**
@@ -299,6 +529,9 @@ public class EventBus {
      * @throws NullPointerException if the event is null.
      */
     public void postDelayed(@NonNull final Object event, long milliseconds) {
+        if (!admitEvent(event)) {
+            return;
+        }
         mDispatcherThread.postDelayed(new Dispatcher(this, event, null), milliseconds);
     }
 
@@ -335,7 +568,9 @@ public class EventBus {
      * @throws NullPointerException if the event is null.
      */
     public void send(@NonNull final Object event) {
-        new Dispatcher(this, event, null).run();
+        if (admitEvent(event)) {
+            new Dispatcher(this, event, null).run();
+        }
     }
 
     /**
@@ -348,8 +583,10 @@ public class EventBus {
      * @param event @NonNull sticky event to send
      */
     public void sendSticky(@NonNull final Object event) {
-        Cache.stickyEvents.put(event.getClass(), event);
-        send(event);
+        if (admitEvent(event)) {
+            Cache.stickyEvents.put(event.getClass(), event);
+            new Dispatcher(this, event, null).run();
+        }
     }
 
     /**
@@ -362,6 +599,415 @@ public class EventBus {
         Cache.stickyEvents.remove(eventClass);
     }
 
+    /**
+     * Keeps the last events of given type, and of its subtypes, and delivers them, oldest first, to every
+     * new subscriber of this type, when it registers. Unlike the sticky event, which is the last event only.
+     * <p/>
+     * The buffer is allocated at once, and recording an event takes no lock. The buffer is per bus.
+     * Note: an event dispatched while the subscriber registers can be delivered twice, replayed and dispatched.
+     *
+     * @param eventType @NonNull the event type, exactly as declared by the event handlers.
+     * @param capacity  number of events to keep. Calling it again with other capacity drops the kept events.
+     */
+    public void enableReplay(@NonNull Class<?> eventType, int capacity) {
+        ReplayBuffer replayBuffer = mReplayBuffers.get(eventType);
+        if (replayBuffer == null || replayBuffer.mCapacity != capacity) {
+            mReplayBuffers.put(eventType, new ReplayBuffer(capacity));
+        }
+    }
+
+    /**
+     * Drops the replay buffer of given type, see {@link #enableReplay(Class, int)}.
+     */
+    public void disableReplay(@NonNull Class<?> eventType) {
+        mReplayBuffers.remove(eventType);
+    }
+
+    /**
+     * Enables the immediate delivery for all event handlers of this bus: when an event is dispatched in
+     * the delivery thread of the handler already, e.g. sent in the UI thread to a DELIVER_IN_UI_THREAD
+     * handler, or to a DELIVER_IN_DEFAULT_THREAD handler of a subscriber registered in this thread,
+     * it is delivered before sendXxx() returns, instead of being posted to the thread's queue.
+     * This saves the queue latency, and an allocation.
+     * <p/>
+     * Note: an immediately delivered event can overtake the events posted to the thread before.
+     * Nested immediate deliveries are limited, deeper ones are posted as usual.
+     * <p/>
+     * Disabled by default, can be enabled per handler with @Subscribe(immediate = true).
+     */
+    public void setImmediateDelivery(boolean enabled) {
+        mImmediateDelivery = enabled;
+    }
+
+    /**
+     * Switches post() of this bus, and of its channels, to the ring dispatcher: a preallocated ring of events,
+     * consumed by its own dispatcher thread. Posting is a CAS and an array write, with no allocation and no
+     * Handler message, so it fits event rates far beyond the Handler, e.g. telemetry.
+     * <p/>
+     * The ring dispatcher thread is the dispatcher thread of the posted events from now on, the
+     * DELIVER_IN_DISPATCHER_THREAD handlers are called in it. postTo() and postDelayed() still use the Handler,
+     * so they are not ordered with post() anymore. Posting waits while the ring is full, except in the ring
+     * dispatcher thread, e.g. from a DELIVER_IN_DISPATCHER_THREAD handler: its events are queued outside of the ring,
+     * in order, until there is room.
+     * The ring can't be replaced, disable it first, see {@link #disableRingDispatch()}.
+     *
+     * @param capacity     number of events the ring holds, have to be a power of two.
+     * @param waitStrategy how the dispatcher thread waits for events, trades latency for CPU use, see WAIT_BLOCKING.
+     * @throws IllegalStateException    if already enabled.
+     * @throws IllegalArgumentException if the capacity is not a power of two.
+     */
+    public void enableRingDispatch(int capacity, @WaitStrategy int waitStrategy) {
+        synchronized (this) {
+            if (mRingDispatcher != null) {
+                throw new IllegalStateException("Ring dispatch is already enabled");
+            }
+            final RingDispatcher ringDispatcher = new RingDispatcher(capacity, waitStrategy, new RingDispatcher.EventConsumer() {
+                /**
+                 * Reused for all events, there is one consumer thread.
+                 */
+                Dispatcher mDispatcher;
+
+                @Override
+                public void accept(@NonNull Object event, @Nullable Object attachment) {
+                    //a debounced event, held by the limiter of its handler until now
+                    if (attachment instanceof DeliveryLimiter) {
+                        ((DeliveryLimiter) attachment).deliver(EventBus.this, event);
+                        return;
+                    }
+                    if (mDispatcher == null) {
+                        mDispatcher = new Dispatcher(EventBus.this, event, null);
+                    }
+                    //the attachment is the channel the event was posted through
+                    mDispatcher.runReused(event, (Channel<?>) attachment);
+                }
+            });
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND - 4);
+                    ringDispatcher.run();
+                }
+            }, RING_DISPATCHER_THREAD_NAME + mIdentifier);
+            thread.setDaemon(true);
+            thread.start();
+            mRingDispatcher = ringDispatcher;
+        }
+    }
+
+    /**
+     * Switches post() back to the dispatcher thread Handler, and stops the ring dispatcher thread,
+     * once it has dispatched the events in the ring. Call it when no other thread posts to the bus anymore,
+     * e.g. when the bus is not needed: an event posted at the same time can be left in the stopped ring.
+     * Does nothing if the ring dispatch is not enabled.
+     */
+    public void disableRingDispatch() {
+        synchronized (this) {
+            final RingDispatcher ringDispatcher = mRingDispatcher;
+            if (ringDispatcher != null) {
+                mRingDispatcher = null;
+                ringDispatcher.halt();
+            }
+        }
+    }
+
+    /**
+     * Limits how long the UI thread delivers events of this bus in one frame. Events that do not fit
+     * in the budget wait for the next frame, so a burst of DELIVER_IN_UI_THREAD events (and DELIVER_IN_DEFAULT_THREAD
+     * events of subscribers registered in the UI thread) can't block the UI thread for many frames.
+     * <p/>
+     * Frames are aligned to the Choreographer frames, on API 15 each chunk is a separate UI thread message.
+     * At least one event is delivered per frame. See {@link #getUiDeliveryStatistics()}.
+     *
+     * @param budget the time budget per frame, pass 0 to deliver without the budget, this is the default.
+     * @param unit   @NonNull the unit of the budget.
+     */
+    public void setUiFrameBudget(long budget, @NonNull TimeUnit unit) {
+        mUiDeliveryScheduler = budget > 0
+                ? new UiDeliveryScheduler(UiDeliveryScheduler.createUiFrameScheduler(mUiThreadHandler),
+                UiDeliveryScheduler.SYSTEM_CLOCK, unit.toNanos(budget))
+                : null;
+    }
+
+    /**
+     * @return @NonNull statistics of the frame budgeted UI thread delivery, all zeros if there is no budget.
+     */
+    @NonNull
+    public UiDeliveryStatistics getUiDeliveryStatistics() {
+        UiDeliveryScheduler scheduler = mUiDeliveryScheduler;
+        return scheduler != null ? scheduler.getStatistics() : new UiDeliveryStatistics(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Returns the shared work stealing executor, to pass to {@link #EventBus(String, Executor)}, for the buses
+     * with many short DELIVER_IN_BACKGROUND_THREAD handlers. The default executor has a single queue,
+     * shared by all delivering threads and all its worker threads, under load its lock is contended.
+     * This one is a ForkJoinPool in the async mode: every worker thread has its own queue, and takes
+     * the work of the others when idle.
+     * <p/>
+     * Note: the ForkJoinPool is available since API 21, on older versions the default executor is returned.
+     * The pool has as many threads as the default one, handlers that block for long still hold them.
+     *
+     * @return @NonNull executor shared by all buses using it.
+     */
+    @NonNull
+    public static synchronized Executor getWorkStealingExecutor() {
+        if (sWorkStealingExecutor == null) {
+            sWorkStealingExecutor = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? WorkStealingPool.create(getSharedPoolSize())
+                    : getSharedExecutor();
+        }
+        return sWorkStealingExecutor;
+    }
+
+    /**
+     * Watches the event handlers of this bus, and reports the ones running longer than the threshold,
+     * with the stack of their thread, captured while the handler is still running. Use it to find the
+     * handlers blocking the UI thread, or the dispatcher thread.
+     * <p/>
+     * A handler running over 1.5 threshold is always reported, a shorter one may be. Handlers that finish
+     * in time cost a few writes to the thread's own slot, no lock and no allocation.
+     *
+     * @param threshold the time a handler can run, pass 0 to stop watching, this is the default.
+     * @param unit      @NonNull the unit of the threshold.
+     * @param listener  receives the reports, in the watchdog thread. Can be null if the threshold is 0.
+     */
+    public void setSlowHandlerWatchdog(long threshold, @NonNull TimeUnit unit, @Nullable SlowHandlerListener listener) {
+        synchronized (this) {
+            HandlerWatchdog watchdog = mHandlerWatchdog;
+            if (watchdog != null) {
+                watchdog.halt();
+                mHandlerWatchdog = null;
+            }
+            if (threshold > 0) {
+                if (listener == null) {
+                    throw new NullPointerException("Listener is null");
+                }
+                watchdog = new HandlerWatchdog(unit.toNanos(threshold), listener);
+                Thread thread = new Thread(watchdog, WATCHDOG_THREAD_NAME + mIdentifier);
+                thread.setDaemon(true);
+                thread.start();
+                mHandlerWatchdog = watchdog;
+            }
+        }
+    }
+
+    /**
+     * Limits how many {@link DeadEvent}s per second are generated by this bus. Unhandled events over
+     * the limit are dropped, without allocating the DeadEvent, see {@link #getDroppedDeadEventCount()}.
+     * <p/>
+     * Note: DeadEvents are generated only if any subscriber accepts them, the limit is applied on top of that.
+     *
+     * @param eventsPerSecond maximum number of DeadEvents per second, also the burst size.
+     *                        Pass 0 to remove the limit, this is the default.
+     */
+    public void setDeadEventRateLimit(int eventsPerSecond) {
+        mDeadEventLimiter = eventsPerSecond > 0 ? new TokenBucket(eventsPerSecond, eventsPerSecond) : null;
+    }
+
+    /**
+     * @return number of unhandled events, that were not wrapped into DeadEvent due to the rate limit.
+     */
+    public long getDroppedDeadEventCount() {
+        return mDroppedDeadEvents.get();
+    }
+
+    /**
+     * Limits how many events of given class per second are posted or sent by this bus. Events over
+     * the limit are dropped by post() and send(), before anything is allocated for their dispatch,
+     * see {@link #getRateLimitedEventCount(Class)}. Use it for the producers that can flood the bus,
+     * e.g. sensor or telemetry events.
+     * <p/>
+     * Note: the limit applies to the exact class of the event, not to its subclasses. Events sent to one
+     * subscriber, with postTo() or sendTo(), are not limited.
+     *
+     * @param eventClass      @NonNull class of the limited events.
+     * @param eventsPerSecond maximum rate of the events, pass 0 to remove the limit, this is the default.
+     * @param burst           number of events accepted at once, after a quiet period.
+     */
+    public void setRateLimit(@NonNull Class<?> eventClass, double eventsPerSecond, int burst) {
+        getProducerLimit(eventClass).mRateLimit = eventsPerSecond > 0 ? new TokenBucket(eventsPerSecond, burst) : null;
+    }
+
+    /**
+     * Dispatches only a random sample of the events of given class, e.g. of the analytics events.
+     * Events not sampled are dropped by post() and send(), before the rate limit is checked,
+     * see {@link #getSampledOutEventCount(Class)}.
+     * <p/>
+     * Note: the sampling applies to the exact class of the event, like {@link #setRateLimit(Class, double, int)}.
+     *
+     * @param eventClass  @NonNull class of the sampled events.
+     * @param probability probability of an event to be dispatched, from 0 to 1. Pass 1 to dispatch all
+     *                    events, this is the default.
+     * @throws IllegalArgumentException if the probability is out of range.
+     */
+    public void setSampling(@NonNull Class<?> eventClass, double probability) {
+        if (!(probability >= 0 && probability <= 1)) {
+            throw new IllegalArgumentException("Probability must be from 0 to 1: " + probability);
+        }
+        getProducerLimit(eventClass).mSampleRate = probability;
+    }
+
+    /**
+     * @return number of events of given class dropped due to the rate limit, see {@link #setRateLimit(Class, double, int)}.
+     */
+    public long getRateLimitedEventCount(@NonNull Class<?> eventClass) {
+        ProducerLimit limit = mProducerLimits.get(eventClass);
+        return limit != null ? limit.mRateLimited.get() : 0;
+    }
+
+    /**
+     * @return number of events of given class dropped by the sampling, see {@link #setSampling(Class, double)}.
+     */
+    public long getSampledOutEventCount(@NonNull Class<?> eventClass) {
+        ProducerLimit limit = mProducerLimits.get(eventClass);
+        return limit != null ? limit.mSampledOut.get() : 0;
+    }
+
+    /**
+     * Scans given classes in the background thread, so the first {@link #register(Object)} of the
+     * subscriber, or the first post of the event, will not pay for the reflection in the calling
+     * thread, usually the UI thread.
+     * <p/>
+     * Pass subscriber classes, the event classes they handle are preloaded too. Event classes that
+     * are posted, but not handled by any of the subscribers, can be passed as well.
+     * <p/>
+     * Note: metadata caches are shared by all event bus instances, only the executor of this
+     * instance is used.
+     *
+     * @param classes @NonNull subscriber or event classes to preload.
+     */
+    public void preload(@NonNull final Class<?>... classes) {
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Class<?> clazz : classes) {
+                    try {
+                        Cache.preload(clazz);
+                    } catch (RuntimeException ignored) {
+                        //invalid subscriber class, it is reported when the subscriber gets registered.
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #preload(Class[])}, but for class names, usually the ones recorded in the previous
+     * run with {@link #getPreloadProfile()}. Classes that can not be found are skipped.
+     *
+     * @param classLoader @NonNull class loader to load the classes with.
+     * @param classNames  @NonNull names of subscriber or event classes to preload.
+     */
+    public void preload(@NonNull final ClassLoader classLoader, @NonNull final Collection<String> classNames) {
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String className : classNames) {
+                    try {
+                        Cache.preload(Class.forName(className, false, classLoader));
+                    } catch (ClassNotFoundException | LinkageError | RuntimeException ignored) {
+                        //class removed or renamed since the profile was recorded, or invalid subscriber.
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns names of all subscriber and event classes scanned by event buses so far, in order of
+     * first use. Store it, and pass it to {@link #preload(ClassLoader, Collection)} on the next cold start.
+     */
+    @NonNull
+    public static List<String> getPreloadProfile() {
+        return Cache.getPreloadProfile();
+    }
+
+    /**
+     * Saves the event handlers of all subscriber classes scanned so far to a file, so they can be
+     * restored with {@link #loadMetadata(File, String, ClassLoader)} on the next process start,
+     * without the reflection scanning.
+     * <p/>
+     * The checksum should identify the code, e.g. the APK version code and its last update time.
+     * Call it in a background thread, when the app is already warmed-up.
+     *
+     * @param file     @NonNull file to write, replaced atomically.
+     * @param checksum @NonNull identifies the code the metadata is valid for.
+     */
+    public static void saveMetadata(@NonNull File file, @NonNull String checksum) throws IOException {
+        MetadataStore.save(file, checksum);
+    }
+
+    /**
+     * Loads the event handlers of subscriber classes saved with {@link #saveMetadata(File, String)},
+     * if the file was saved with the same checksum. The file is read at once, and the classes it lists
+     * will not be scanned on the first register.
+     *
+     * @param file        @NonNull file to read.
+     * @param checksum    @NonNull identifies the current code, have to match the saved one.
+     * @param classLoader @NonNull class loader of the subscriber classes.
+     * @return false if there was no file, or it was saved for different checksum, or is corrupted.
+     * In such case save the metadata again.
+     */
+    public static boolean loadMetadata(@NonNull File file, @NonNull String checksum, @NonNull ClassLoader classLoader) {
+        return MetadataStore.load(file, checksum, classLoader);
+    }
+
+    /**
+     * Limits the size of the metadata caches, shared by all event bus instances: the cache of event
+     * class hierarchies, and the cache of subscriber classes event handlers. When exceeded, the oldest
+     * cached classes are evicted, and will be scanned again when needed.
+     *
+     * @param maxClasses maximum number of classes in each of the caches, 0 means unbounded, this is the default.
+     */
+    public static void setMetadataCacheMaxSize(int maxClasses) {
+        Cache.mEventClassHierarchyCache.setMaxSize(maxClasses);
+        Cache.mEventHandlersCache.setMaxSize(maxClasses);
+    }
+
+    /**
+     * Removes all cached metadata and sticky events of classes loaded by given ClassLoader, or by any of
+     * its descendants. Call it when a plugin is unloaded, otherwise the caches shared by all event bus
+     * instances will keep its ClassLoader alive. The channels, replay buffers and producer limits of
+     * these classes are removed from all buses too, channels already obtained stop getting subscriber updates.
+     * <p/>
+     * Note: subscribers of these classes should be unregistered from all event buses first.
+     *
+     * @param classLoader @NonNull ClassLoader of unloaded classes.
+     */
+    public static void evictMetadata(@NonNull ClassLoader classLoader) {
+        Cache.evict(classLoader);
+        synchronized (sBuses) {
+            for (EventBus bus : sBuses) {
+                bus.evictClasses(classLoader);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables counting of hits and misses in the metadata caches. Disabled by default,
+     * as it adds shared counter updates to every post.
+     */
+    public static void setMetadataCacheStatisticsEnabled(boolean enabled) {
+        Cache.mEventClassHierarchyCache.mRecordStatistics = enabled;
+        Cache.mEventHandlersCache.mRecordStatistics = enabled;
+    }
+
+    /**
+     * @return statistics of the event class hierarchy cache, used on every post.
+     */
+    @NonNull
+    public static CacheStatistics getEventClassCacheStatistics() {
+        return Cache.mEventClassHierarchyCache.getStatistics();
+    }
+
+    /**
+     * @return statistics of the subscriber event handlers cache, used on every register.
+     */
+    @NonNull
+    public static CacheStatistics getSubscriberCacheStatistics() {
+        return Cache.mEventHandlersCache.getStatistics();
+    }
+
     /**
      * Send an event to all registered subscribers, dispatching it in current thread, before method
      * returns, to one specific subscriber.
@@ -389,9 +1035,18 @@ public class EventBus {
 
     static final String BACKGROUND_THREAD_NAME = "EventBus.Executor #";
     static final String DISPATHER_THREAD_NAME = "EventBus.Dispatcher";
+    static final String RING_DISPATCHER_THREAD_NAME = "EventBus.RingDispatcher ";
+    static final String WATCHDOG_THREAD_NAME = "EventBus.Watchdog ";
+    static final String WORK_STEALING_THREAD_NAME = "EventBus.WorkStealing #";
 
 
     static ThreadPoolExecutor mSharedExecutor = null;
+
+    /**
+     * All buses, referenced weakly, so evictMetadata() can clear their per-bus class keyed state.
+     */
+    static final Set<EventBus> sBuses = Collections.newSetFromMap(new WeakHashMap<EventBus, Boolean>());
+    static Executor sWorkStealingExecutor = null;
     static final Handler mUiThreadHandler = new Handler(Looper.getMainLooper());
 
     @NonNull
@@ -409,14 +1064,97 @@ public class EventBus {
     final Map<Class<?>, CopyOnWriteArraySet<EventHandler>> mRegisteredEventHandlersByEventType = new ConcurrentHashMap<>();
 
     /**
-     * A map of android Handler objects that are default thread handlers for the subscribers.
+     * Subscribers registered with a key, indexed by event type, and then by key.
+     * Inner Set is a CopyOnWriteArraySet, removed from the key map as soon as it gets empty,
+     * so keys of finished conversations, documents etc. are not kept.
+     */
+    final Map<Class<?>, ConcurrentHashMap<Object, CopyOnWriteArraySet<EventHandler>>> mKeyedEventHandlersByEventType = new ConcurrentHashMap<>();
+
+    /**
+     * Default threads of the subscribers. A DefaultThread is shared with all EventHandlers of the
+     * subscriber, so the dispatch reads it directly, this map is used by register and unregister only.
+     */
+    final ConcurrentHashMap<IdentityWeakReferenceKey<Object>, DefaultThread> mSubscribersDefaultThreads = new ConcurrentHashMap<>();
+
+    /**
+     * Channels created so far, by event class.
      */
-    final Map<IdentityWeakReferenceKey<Object>, Handler> mSubscribersDefaultThreads = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Class<?>, Channel<?>> mChannels = new ConcurrentHashMap<>();
 
+    /**
+     * The ring dispatcher, null if posting through the dispatcher thread Handler, see enableRingDispatch().
+     */
+    @Nullable
+    volatile RingDispatcher mRingDispatcher = null;
+
+    /**
+     * Replay buffers, by event type, see enableReplay().
+     */
+    final ConcurrentHashMap<Class<?>, ReplayBuffer> mReplayBuffers = new ConcurrentHashMap<>();
+
+    /**
+     * Guards the bus tree changes, they concern many buses at once.
+     */
+    static final Object sTopologyLock = new Object();
+
+    /**
+     * The parent bus, null if not linked.
+     */
+    @Nullable
+    volatile EventBus mParent = null;
+
+    /**
+     * The linked child buses.
+     */
+    final CopyOnWriteArrayList<EventBus> mChildren = new CopyOnWriteArrayList<>();
+
+    /**
+     * Forwarding rules, the event types forwarded to the parent, and to the children.
+     */
+    final CopyOnWriteArraySet<Class<?>> mForwardToParent = new CopyOnWriteArraySet<>();
+    final CopyOnWriteArraySet<Class<?>> mForwardToChildren = new CopyOnWriteArraySet<>();
+
+    /**
+     * Immediate delivery for all event handlers, see setImmediateDelivery().
+     */
+    volatile boolean mImmediateDelivery = false;
+
+    /**
+     * Frame budgeted UI thread delivery, null if there is no budget, see setUiFrameBudget().
+     */
+    @Nullable
+    volatile UiDeliveryScheduler mUiDeliveryScheduler = null;
+
+    /**
+     * Slow handler watchdog, null if not watching, see setSlowHandlerWatchdog().
+     */
+    @Nullable
+    volatile HandlerWatchdog mHandlerWatchdog = null;
+
+    /**
+     * Rate limiter for the DeadEvents, null if there is no limit.
+     */
+    @Nullable
+    volatile TokenBucket mDeadEventLimiter = null;
+
+    /**
+     * Counter of the unhandled events that were not wrapped into DeadEvents due to rate limit.
+     */
+    final AtomicLong mDroppedDeadEvents = new AtomicLong();
+
+    /**
+     * Producer side rate limits and sampling, by exact event class, see setRateLimit() and setSampling().
+     */
+    final ConcurrentHashMap<Class<?>, ProducerLimit> mProducerLimits = new ConcurrentHashMap<>();
 
-    synchronized Executor getSharedExecutor() {
+
+    static int getSharedPoolSize() {
+        return Math.max(4, Math.min(16, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    static synchronized Executor getSharedExecutor() {
         if (mSharedExecutor == null) {
-            int numberOfThreads = Math.max(4, Math.min(16, Runtime.getRuntime().availableProcessors() * 2));
+            int numberOfThreads = getSharedPoolSize();
             mSharedExecutor = new ThreadPoolExecutor(
                     numberOfThreads, numberOfThreads,
                     10, TimeUnit.SECONDS,
@@ -436,14 +1174,315 @@ public class EventBus {
         return mSharedExecutor;
     }
 
+    void register(@NonNull Object subscriber, boolean strongReference, @Nullable Object key) {
+        //checked first, a rejected call must not move the default thread of the weakly registered subscriber
+        if (strongReference) {
+            checkNotRegisteredWeakly(subscriber, Cache.getEventTypes(subscriber.getClass()));
+        }
+        DefaultThread defaultThread = assignDefaultThread(subscriber);
+
+        //Key: the event class to handle
+        //Value: set of event handlers that can handle this event class.
+        Map<Class<?>, List<EventHandler>> eventHandlers = Cache.findAllEventHandlersForSubscriber(subscriber, defaultThread, strongReference);
+        for (Map.Entry<Class<?>, List<EventHandler>> entry : eventHandlers.entrySet()) {
+            //finally, add new event handlers to the registered handlers
+            if (key != null) {
+                addKeyedEventHandlers(entry.getKey(), key, entry.getValue());
+            } else if (getRegisteredEventHandlers(entry.getKey()).addAll(entry.getValue())) {
+                onRegistryChanged(entry.getKey());
+            }
+            if (!mReplayBuffers.isEmpty()) {
+                replayTo(entry.getKey(), key, subscriber, entry.getValue());
+            }
+
+            Object stickyEvent = Cache.stickyEvents.get(entry.getKey());
+            if (stickyEvent != null) {
+                sendTo(stickyEvent, subscriber);
+            }
+        }
+    }
+
+    /**
+     * The weak and the strong event handlers of the same subscriber method are equal, so registerStrong()
+     * of a weakly registered subscriber would silently leave it weak.
+     */
+    void checkNotRegisteredWeakly(@NonNull Object subscriber, @NonNull Collection<Class<?>> eventTypes) {
+        for (Class<?> eventType : eventTypes) {
+            CopyOnWriteArraySet<EventHandler> registeredEventHandlers = mRegisteredEventHandlersByEventType.get(eventType);
+            if (registeredEventHandlers == null) {
+                continue;
+            }
+            for (EventHandler eventHandler : registeredEventHandlers) {
+                if (eventHandler.mStrongSubscriber == null && eventHandler.mSubscriber != null
+                        && eventHandler.mSubscriber.get() == subscriber) {
+                    throw new IllegalStateException("Subscriber " + subscriber + " is registered weakly already, unregister it first");
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the debounced event of the unregistered event handler, if any, so it is not delivered later.
+     */
+    static void cancelPendingDelivery(@NonNull EventHandler eventHandler) {
+        if (eventHandler.mLimiter != null) {
+            eventHandler.mLimiter.cancel();
+        }
+    }
+
+    /**
+     * Queues the event for the dispatcher thread, through the ring dispatcher if enabled.
+     * The ring keeps the channel in the slot of the event, so it is not looked up again.
+     */
+    void enqueue(@NonNull Object event, @Nullable Channel<?> channel) {
+        if (!admitEvent(event)) {
+            return;
+        }
+        RingDispatcher ringDispatcher = mRingDispatcher;
+        if (ringDispatcher != null) {
+            ringDispatcher.publish(event, channel);
+        } else {
+            mDispatcherThread.post(new Dispatcher(this, event, null, channel));
+        }
+    }
+
+    /**
+     * Delivers the replay buffer of the event type, if any, to the just registered event handlers.
+     * Each handler gets the buffer of its own event type only, so an event kept in the buffers of
+     * its class and of its superclass is not delivered twice.
+     */
+    void replayTo(@NonNull Class<?> eventType, @Nullable Object key, @NonNull Object subscriber,
+                  @NonNull Collection<EventHandler> eventHandlers) {
+        ReplayBuffer replayBuffer = mReplayBuffers.get(eventType);
+        if (replayBuffer == null) {
+            return;
+        }
+        for (Object event : replayBuffer.snapshot()) {
+            //keyed handlers get the events of their key only, same as in the dispatch
+            if (key != null && !(event instanceof KeyedEvent && key.equals(((KeyedEvent) event).getEventKey()))) {
+                continue;
+            }
+            Dispatcher dispatcher = new Dispatcher(this, event, subscriber);
+            for (EventHandler eventHandler : eventHandlers) {
+                dispatcher.dispatch(eventHandler);
+            }
+        }
+    }
+
+    /**
+     * Gets the Set of registered event handlers for event type, creates one if needed.
+     */
+    @NonNull
+    CopyOnWriteArraySet<EventHandler> getRegisteredEventHandlers(@NonNull Class<?> eventType) {
+        CopyOnWriteArraySet<EventHandler> registeredEventHandlersForEventType = mRegisteredEventHandlersByEventType.get(eventType);
+        //If there is no Set of EventHandlers for this type of event, we have to create one. But it must be safe, no race condition, thus synchronized().
+        if (registeredEventHandlersForEventType == null) {
+            synchronized (mRegisteredEventHandlersByEventType) {
+                //check again, maybe other thread managed to add the Set already, while this one waied for the synchronization
+                registeredEventHandlersForEventType = mRegisteredEventHandlersByEventType.get(eventType);
+                if (registeredEventHandlersForEventType == null) {
+                    registeredEventHandlersForEventType = new CopyOnWriteArraySet<>();
+                    mRegisteredEventHandlersByEventType.put(eventType, registeredEventHandlersForEventType);
+                }
+            }
+        }
+        return registeredEventHandlersForEventType;
+    }
+
+    /**
+     * Adds event handlers registered with a key. The Set for the key is created, and removed when empty,
+     * while holding the lock of the key map, so it can not be removed just before the handlers are added.
+     */
+    void addKeyedEventHandlers(@NonNull Class<?> eventType, @NonNull Object key, @NonNull Collection<EventHandler> eventHandlers) {
+        ConcurrentHashMap<Object, CopyOnWriteArraySet<EventHandler>> keyedEventHandlers = mKeyedEventHandlersByEventType.get(eventType);
+        if (keyedEventHandlers == null) {
+            synchronized (mKeyedEventHandlersByEventType) {
+                keyedEventHandlers = mKeyedEventHandlersByEventType.get(eventType);
+                if (keyedEventHandlers == null) {
+                    keyedEventHandlers = new ConcurrentHashMap<>();
+                    mKeyedEventHandlersByEventType.put(eventType, keyedEventHandlers);
+                }
+            }
+        }
+        synchronized (keyedEventHandlers) {
+            CopyOnWriteArraySet<EventHandler> eventHandlersForKey = keyedEventHandlers.get(key);
+            if (eventHandlersForKey == null) {
+                eventHandlersForKey = new CopyOnWriteArraySet<>();
+                keyedEventHandlers.put(key, eventHandlersForKey);
+            }
+            eventHandlersForKey.addAll(eventHandlers);
+        }
+    }
+
+    void removeKeyedEventHandlers(@NonNull Class<?> eventType, @NonNull Object key, @NonNull Collection<EventHandler> eventHandlers) {
+        ConcurrentHashMap<Object, CopyOnWriteArraySet<EventHandler>> keyedEventHandlers = mKeyedEventHandlersByEventType.get(eventType);
+        if (keyedEventHandlers != null) {
+            synchronized (keyedEventHandlers) {
+                CopyOnWriteArraySet<EventHandler> eventHandlersForKey = keyedEventHandlers.get(key);
+                if (eventHandlersForKey != null) {
+                    eventHandlersForKey.removeAll(eventHandlers);
+                    if (eventHandlersForKey.isEmpty()) {
+                        keyedEventHandlers.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the channels that route given event type, called after its registered event handlers changed.
+     */
+    void onRegistryChanged(@NonNull Class<?> eventType) {
+        if (!mChannels.isEmpty()) {
+            for (Channel<?> channel : mChannels.values()) {
+                if (channel.mEventClasses.contains(eventType)) {
+                    channel.update();
+                }
+            }
+        }
+    }
+
     Handler createDispatcherThread() {
         HandlerThread thread = new HandlerThread(DISPATHER_THREAD_NAME, android.os.Process.THREAD_PRIORITY_BACKGROUND - 4);
         thread.start();
         return new Handler(thread.getLooper());
     }
 
+    /**
+     * Checks if there is any subscriber that would accept the DeadEvent, so it is worth creating one.
+     * The DeadEvent class hierarchy is just DeadEvent and Object. The linked buses the DeadEvent
+     * would be forwarded to are checked too, e.g. the parent collecting the dead events of its children.
+     */
+    boolean hasDeadEventHandlers() {
+        return hasDeadEventHandlers(null);
+    }
+
+    /**
+     * @param from @Nullable the linked bus asking, the DeadEvent would not be forwarded back to it.
+     */
+    boolean hasDeadEventHandlers(@Nullable EventBus from) {
+        Set<EventHandler> eventHandlers = mRegisteredEventHandlersByEventType.get(DeadEvent.class);
+        if (eventHandlers != null && !eventHandlers.isEmpty()) {
+            return true;
+        }
+        eventHandlers = mRegisteredEventHandlersByEventType.get(Object.class);
+        if (eventHandlers != null && !eventHandlers.isEmpty()) {
+            return true;
+        }
+        if (!hasForwardingRules()) {
+            return false;
+        }
+        final EventBus parent = mParent;
+        if (parent != null && parent != from && forwardsDeadEvents(mForwardToParent) && parent.hasDeadEventHandlers(this)) {
+            return true;
+        }
+        if (forwardsDeadEvents(mForwardToChildren)) {
+            for (EventBus child : mChildren) {
+                if (child != from && child.hasDeadEventHandlers(this)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static boolean forwardsDeadEvents(@NonNull Set<Class<?>> forwardedEventTypes) {
+        return forwardedEventTypes.contains(DeadEvent.class) || forwardedEventTypes.contains(Object.class);
+    }
+
+    boolean hasForwardingRules() {
+        return !mForwardToParent.isEmpty() || !mForwardToChildren.isEmpty();
+    }
+
+    /**
+     * Applies the producer side sampling and rate limit of the event class, if any.
+     *
+     * @return true if the event should be dispatched.
+     */
+    boolean admitEvent(@NonNull Object event) {
+        if (mProducerLimits.isEmpty()) {
+            return true;
+        }
+        ProducerLimit limit = mProducerLimits.get(event.getClass());
+        return limit == null || limit.admit();
+    }
+
+    @NonNull
+    ProducerLimit getProducerLimit(@NonNull Class<?> eventClass) {
+        ProducerLimit limit = mProducerLimits.get(eventClass);
+        if (limit == null) {
+            ProducerLimit newLimit = new ProducerLimit();
+            limit = mProducerLimits.putIfAbsent(eventClass, newLimit);
+            if (limit == null) {
+                limit = newLimit;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Removes the per-bus state keyed by the classes of given ClassLoader, see evictMetadata().
+     */
+    void evictClasses(@NonNull ClassLoader classLoader) {
+        evictClasses(mChannels, classLoader);
+        evictClasses(mReplayBuffers, classLoader);
+        evictClasses(mProducerLimits, classLoader);
+    }
+
+    static void evictClasses(@NonNull Map<Class<?>, ?> map, @NonNull ClassLoader classLoader) {
+        for (Iterator<Class<?>> iterator = map.keySet().iterator(); iterator.hasNext(); ) {
+            if (ClassKeyedCache.isLoadedBy(iterator.next(), classLoader)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    boolean tryAcquireDeadEventPermit() {
+        TokenBucket limiter = mDeadEventLimiter;
+        if (limiter == null || limiter.tryAcquire()) {
+            return true;
+        }
+        mDroppedDeadEvents.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Assigns current thread to the subscriber being registered, see assignThreadForSubscriber().
+     * The DefaultThread of the subscriber is created once, and then updated in place, so the
+     * already registered EventHandlers, that share it, follow the change. It is removed by unregister().
+     *
+     * @return @NonNull the DefaultThread of the subscriber.
+     */
+    @NonNull
+    DefaultThread assignDefaultThread(@NonNull Object subscriber) {
+        IdentityWeakReferenceKey<Object> key = new IdentityWeakReferenceKey<>(subscriber);
+        DefaultThread defaultThread = mSubscribersDefaultThreads.get(key);
+        if (defaultThread == null) {
+            DefaultThread newDefaultThread = new DefaultThread();
+            defaultThread = mSubscribersDefaultThreads.putIfAbsent(key, newDefaultThread);
+            if (defaultThread == null) {
+                defaultThread = newDefaultThread;
+            }
+        }
+
+        //Assumption: this is called always to change thread, so no check for old value.
+        defaultThread.mHandler = getCurrentThreadHandler();
+        return defaultThread;
+    }
+
+    /**
+     * @return Handler of the current thread, null if it has no Looper.
+     */
+    @Nullable
+    static Handler getCurrentThreadHandler() {
+        Looper looper = Looper.myLooper();
+        return looper == null ? null : looper != Looper.getMainLooper() ? new Handler(looper) : mUiThreadHandler;
+    }
+
+    @Nullable
     Handler getDefaultThreadForSubscriber(@NonNull Object subscriber) {
-        return mSubscribersDefaultThreads.get(new IdentityWeakReferenceKey<>(subscriber));
+        DefaultThread defaultThread = mSubscribersDefaultThreads.get(new IdentityWeakReferenceKey<>(subscriber));
+        return defaultThread != null ? defaultThread.mHandler : null;
     }
 
 
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts events to bytes and back, for the event buses that are not in the same memory, like the
+ * ones in the other process, or the ones of the previous run of the app.
+ * <p/>
+ * The codec decides which events it supports, and how to tell their classes apart in the stream,
+ * e.g. with a type tag byte written before the event fields. Each event is framed by its user,
+ * so the codec does not need to write the event length.
+ */
+public interface EventCodec {
+
+    /**
+     * @return true if the event is supported by the codec. Called in the dispatcher thread, have to be cheap.
+     */
+    boolean canEncode(@NonNull Object event);
+
+    /**
+     * Writes the event, one of the events accepted by {@link #canEncode(Object)}.
+     */
+    void encode(@NonNull Object event, @NonNull DataOutput output) throws IOException;
+
+    /**
+     * Reads the event written by {@link #encode(Object, DataOutput)}.
+     *
+     * @return @NonNull the event.
+     * @throws IOException if the data is invalid, or the event is not supported anymore.
+     */
+    @NonNull
+    Object decode(@NonNull DataInput input) throws IOException;
+
+}
@@ -10,15 +10,19 @@
 package com.pgssoft.gimbus;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 /**
- * Represents one subscribing method, on one instance of an object.
+ * Represents one subscribing method, on one instance of an object, or the consumer of a functional subscription.
  * Immutable, except that the mSubscriber reference can be cleared by GC - in this case object will be recycled soon.
  * <p/>
+ * In the strong reference mode the subscriber is referenced directly by mStrongSubscriber, there is
+ * no WeakReference at all, and the subscriber is kept until it gets unregistered.
+ * <p/>
  * Two EventHandlers are equal when they refer to the same method on the same subscriber instance.
  * <p/>
  * Note: package access, the class is for internal use only.
@@ -29,22 +33,67 @@ import java.lang.reflect.Method;
 
     /**
      * The subscriber, an instance to object to deliver the event to.
+     * Null in the strong reference mode.
      */
-    @NonNull
+    @Nullable
     final WeakReference<Object> mSubscriber;
 
+    /**
+     * The subscriber, in the strong reference mode, null otherwise.
+     */
+    @Nullable
+    final Object mStrongSubscriber;
+
     /**
      * The method in the subscriber that should be called for this certain event class.
+     * Null for functional subscriptions.
      */
-    @NonNull
+    @Nullable
     final Method mMethod;
 
+    /**
+     * The filter method in the subscriber, from @Subscribe(filter), null if there is no filter.
+     */
+    @Nullable
+    final Method mFilterMethod;
+
+    /**
+     * The consumer of the functional subscription, called directly instead of the mMethod.
+     * Null for @Subscribe methods.
+     */
+    @Nullable
+    final Consumer<Object> mConsumer;
+
+    /**
+     * The filter of the functional subscription, null if there is no filter.
+     */
+    @Nullable
+    final Predicate<Object> mFilter;
+
     /**
      * The delivery thread, got from @Subscribe
      */
     @NonNull
     final Dispatcher.DispatchingMethod mDispatchingMethod;
 
+    /**
+     * Deliver immediately if dispatched in the delivery thread already, got from @Subscribe
+     */
+    final boolean mImmediate;
+
+    /**
+     * Debounce or throttle of the deliveries, got from @Subscribe. Null if neither is used.
+     */
+    @Nullable
+    final DeliveryLimiter mLimiter;
+
+    /**
+     * The default delivery thread of the subscriber, shared with its other EventHandlers.
+     * Null if the handler was not registered in the event bus.
+     */
+    @Nullable
+    final DefaultThread mDefaultThread;
+
     /**
      * Object hash code, cached because it will not change.
      */
@@ -52,10 +101,37 @@ import java.lang.reflect.Method;
 
 
     EventHandler(@NonNull Object subscriber, @NonNull Method method, @NonNull Dispatcher.DispatchingMethod dispatchingMethodd) {
-        mSubscriber = new WeakReference<>(subscriber);
+        this(subscriber, method, null, dispatchingMethodd, false, 0, 0, null, false);
+    }
+
+    EventHandler(@NonNull Object subscriber, @NonNull Cache.EventHandlersCacheItem cacheItem, @Nullable DefaultThread defaultThread,
+                 boolean strongReference) {
+        this(subscriber, cacheItem.eventHandlerMethod, cacheItem.filterMethod, cacheItem.dispatchingMethod, cacheItem.immediate,
+                cacheItem.debounceMs, cacheItem.throttleMs, defaultThread, strongReference);
+    }
+
+    EventHandler(@NonNull Object subscriber, @NonNull Method method, @Nullable Method filterMethod,
+                 @NonNull Dispatcher.DispatchingMethod dispatchingMethodd, boolean immediate, long debounceMs, long throttleMs,
+                 @Nullable DefaultThread defaultThread, boolean strongReference) {
+        if (strongReference) {
+            mSubscriber = null;
+            mStrongSubscriber = subscriber;
+        } else {
+            mSubscriber = new WeakReference<>(subscriber);
+            mStrongSubscriber = null;
+        }
         mMethod = method;
+        mFilterMethod = filterMethod;
+        mConsumer = null;
+        mFilter = null;
         mDispatchingMethod = dispatchingMethodd;
+        mImmediate = immediate;
+        mLimiter = debounceMs > 0 || throttleMs > 0 ? new DeliveryLimiter(this, debounceMs, throttleMs) : null;
+        mDefaultThread = defaultThread;
         method.setAccessible(true);
+        if (filterMethod != null) {
+            filterMethod.setAccessible(true);
+        }
 
         //Compute hash now, it will never change anyway, and it will be used frequently.
         //Plus it will not crash the app if GC clear the mSubscriber
@@ -63,11 +139,82 @@ import java.lang.reflect.Method;
     }
 
     /**
-     * Invokes the subscriber method to handle event.
+     * Creates event handler of the functional subscription, it is always strongly referenced.
+     */
+    EventHandler(@NonNull Subscription subscription, @NonNull Consumer<Object> consumer, @Nullable Predicate<Object> filter,
+                 @NonNull Dispatcher.DispatchingMethod dispatchingMethod, @Nullable DefaultThread defaultThread) {
+        mSubscriber = null;
+        mStrongSubscriber = subscription;
+        mMethod = null;
+        mFilterMethod = null;
+        mConsumer = consumer;
+        mFilter = filter;
+        mDispatchingMethod = dispatchingMethod;
+        mImmediate = false;
+        mLimiter = null;
+        mDefaultThread = defaultThread;
+        mHash = (31 + System.identityHashCode(consumer)) * 31 + System.identityHashCode(subscription);
+    }
+
+    /**
+     * @return the subscriber, or null if it was garbage collected. Never null in the strong reference mode.
+     */
+    @Nullable
+    Object getSubscriber() {
+        //strong mode first, no dereference of the WeakReference at all
+        final Object strongSubscriber = mStrongSubscriber;
+        return strongSubscriber != null ? strongSubscriber : mSubscriber.get();
+    }
+
+    /**
+     * Checks the filter, if there is one. Called in the dispatcher thread, before the event is passed
+     * to the delivery thread.
+     *
+     * @return false if the event was rejected by the filter, or the filter failed.
+     */
+    boolean accepts(@NonNull Object event) {
+        if (mFilter == null && mFilterMethod == null) {
+            return true;
+        }
+        try {
+            if (mFilter != null) {
+                return mFilter.test(event);
+            }
+            Object subscriber = getSubscriber();
+            return subscriber != null && (Boolean) mFilterMethod.invoke(subscriber, event);
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Invokes the subscriber method to handle event, timed by the watchdog of the bus, if any.
      */
     void invoke(@NonNull EventBus bus, @NonNull Object event) {
+        final HandlerWatchdog watchdog = bus.mHandlerWatchdog;
+        final HandlerWatchdog.Slot slot = watchdog != null ? watchdog.begin(this, event) : null;
+        if (slot == null) {
+            invokeMethod(bus, event);
+            return;
+        }
         try {
-            Object subscriber = mSubscriber.get();
+            invokeMethod(bus, event);
+        } finally {
+            watchdog.end(slot);
+        }
+    }
+
+    void invokeMethod(@NonNull EventBus bus, @NonNull Object event) {
+        try {
+            if (mConsumer != null) {
+                //functional subscription, direct call, no reflection
+                mConsumer.accept(event);
+                return;
+            }
+            Object subscriber = getSubscriber();
             if (subscriber != null) {
                 mMethod.invoke(subscriber, event);
             }
@@ -99,8 +246,8 @@ import java.lang.reflect.Method;
         // Use == for mSubscriber, so that different equal instances will still receive events.
         // We only guard against the case that the same object is registered multiple times
         return mHash == other.mHash
-                && mSubscriber.get() == other.mSubscriber.get()
-                && mMethod.equals(other.mMethod);
+                && getSubscriber() == other.getSubscriber()
+                && (mMethod != null ? mMethod.equals(other.mMethod) : mConsumer == other.mConsumer);
     }
 
 }
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Append-only journal of events, in a memory-mapped file, so chosen event types survive the process death.
+ * <p/>
+ * Events of the attached types are encoded with the EventCodec and appended to the file, appending is a
+ * memory copy, the OS writes the pages in the background. When the file is full, it is compacted in a background
+ * thread: only the last event of every class, and the most recent events, filling up to half of the file, are kept.
+ * Events appended meanwhile wait in memory, and are written after the compaction.
+ * <p/>
+ * On the next start, {@link #restoreSticky()} reads the file sequentially and makes the last event of
+ * every class sticky again, and {@link #replay(EventBus)} sends all journaled events, in order.
+ * <p/>
+ * File format (DataOutput encoding):
+ * <pre>
+ * int    MAGIC
+ * int    FORMAT_VERSION
+ * int    end of the last record, the records are valid up to this offset
+ *   int    length of the record
+ *   byte[] the event, written by the EventCodec
+ * </pre>
+ * The end is updated after the record is written, so a record interrupted by the process death is ignored.
+ * <p/>
+ * Usage:
+ * <pre>
+ * EventJournal journal = new EventJournal(new File(getFilesDir(), "events.journal"), codec, 256 * 1024);
+ * journal.restoreSticky();
+ * journal.attach(eventBus, UserProfile.class, Settings.class);
+ * </pre>
+ * Note: {@link EventBus#removeStickyEvent(Class)} is not journaled, the removed event is restored on the next start.
+ */
+public final class EventJournal {
+
+    /**
+     * Opens the journal, creates the file if needed. Existing content is kept, if it is valid.
+     *
+     * @param capacity size of the file, in bytes. Larger files are compacted less often.
+     */
+    public EventJournal(@NonNull File file, @NonNull EventCodec codec, int capacity) throws IOException {
+        if (capacity < HEADER_SIZE + 4) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        mFile = file;
+        mCodec = codec;
+        mCapacity = capacity;
+        map();
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != FORMAT_VERSION || !isValidEnd(mBuffer.getInt(8))) {
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, FORMAT_VERSION);
+            mBuffer.putInt(8, HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Journals the events of the given types, and of their subtypes, dispatched in the bus from now on.
+     * Events not accepted by the codec are not journaled. The sticky events restored by {@link #restoreSticky()},
+     * delivered to the journal when it subscribes, are not journaled again.
+     */
+    public void attach(@NonNull EventBus eventBus, @NonNull Class<?>... eventTypes) {
+        Predicate<Object> filter = new Predicate<Object>() {
+            @Override
+            public boolean test(@NonNull Object event) {
+                return mCodec.canEncode(event);
+            }
+        };
+        Consumer<Object> consumer = new Consumer<Object>() {
+            @Override
+            public void accept(@NonNull Object event) {
+                if (event != mStickyDelivery) {
+                    append(event);
+                }
+            }
+        };
+        synchronized (mSubscriptions) {
+            for (Class<?> eventType : eventTypes) {
+                //the subscription gets the sticky event at once, in this thread, it is journaled already if restored
+                Object stickyEvent = Cache.stickyEvents.get(eventType);
+                synchronized (mRestoredEvents) {
+                    mStickyDelivery = stickyEvent != null && mRestoredEvents.contains(stickyEvent) ? stickyEvent : null;
+                }
+                try {
+                    mSubscriptions.add(eventBus.subscribe(eventType, EventBus.DELIVER_IN_DISPATCHER_THREAD, null, filter, consumer));
+                } finally {
+                    mStickyDelivery = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops journaling the events of all attached buses. The journal can still be read.
+     */
+    public void detach() {
+        synchronized (mSubscriptions) {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.close();
+            }
+            mSubscriptions.clear();
+        }
+    }
+
+    /**
+     * Makes the last journaled event of every class a sticky event, as if sent with {@link EventBus#sendSticky(Object)},
+     * but without delivering it. Call it at startup, before the subscribers register.
+     *
+     * @return number of restored sticky events.
+     */
+    public int restoreSticky() {
+        Map<Class<?>, Object> lastEvents = new HashMap<>();
+        for (Object event : read()) {
+            lastEvents.put(event.getClass(), event);
+        }
+        synchronized (mRestoredEvents) {
+            mRestoredEvents.addAll(lastEvents.values());
+        }
+        Cache.stickyEvents.putAll(lastEvents);
+        return lastEvents.size();
+    }
+
+    /**
+     * Sends all journaled events to the bus, in order, in the current thread.
+     *
+     * @return number of sent events.
+     */
+    public int replay(@NonNull EventBus eventBus) {
+        List<Object> events = read();
+        for (Object event : events) {
+            eventBus.send(event);
+        }
+        return events.size();
+    }
+
+    /**
+     * @return all journaled events, oldest first. Events that can't be decoded anymore are skipped.
+     */
+    @NonNull
+    public List<Object> read() {
+        List<Object> events = new ArrayList<>();
+        for (byte[] record : readRecords()) {
+            Object event = decode(record);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Compacts the journal now, in the current thread, e.g. in an idle moment, instead of when the file gets full.
+     * Does nothing if a compaction is running already.
+     */
+    public void compact() throws IOException {
+        synchronized (this) {
+            if (mCompacting) {
+                return;
+            }
+            mCompacting = true;
+        }
+        runCompaction();
+    }
+
+    /**
+     * Removes all journaled events.
+     */
+    public void clear() {
+        synchronized (this) {
+            mBuffer.putInt(8, HEADER_SIZE);
+            mPending.clear();
+            mPendingBytes = 0;
+            //a running compaction must not bring the events back
+            mGeneration++;
+        }
+    }
+
+    /**
+     * @return number of bytes used by the journaled events, including the ones waiting for the compaction.
+     */
+    public int size() {
+        synchronized (this) {
+            return mBuffer.getInt(8) - HEADER_SIZE + mPendingBytes;
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // implementation
+
+    static final int MAGIC = 0x67624a4c; //"gbJL"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 12;
+
+    @NonNull
+    final File mFile;
+
+    @NonNull
+    final EventCodec mCodec;
+
+    final int mCapacity;
+
+    final List<Subscription> mSubscriptions = new ArrayList<>();
+
+    /**
+     * The sticky events made by restoreSticky(), they are in the journal already. Compared by identity.
+     */
+    final Set<Object> mRestoredEvents = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    /**
+     * The restored sticky event delivered to the subscription being created by attach(), not to be journaled.
+     */
+    @Nullable
+    volatile Object mStickyDelivery = null;
+
+    /**
+     * Reused for encoding of every event, guarded by this.
+     */
+    final RecordBuffer mRecord = new RecordBuffer();
+    final DataOutputStream mRecordOutput = new DataOutputStream(mRecord);
+
+    /**
+     * Mapping of the whole file, guarded by this. Replaced by the compaction.
+     */
+    MappedByteBuffer mBuffer;
+
+    /**
+     * Runs the compactions started by append(), so they do not run in the dispatching thread.
+     */
+    @NonNull
+    Executor mCompactionExecutor = EventBus.getSharedExecutor();
+
+    /**
+     * True while a compaction is scheduled or running, the file is not written meanwhile. Guarded by this.
+     */
+    boolean mCompacting = false;
+
+    /**
+     * Records appended while compacting, written after the compaction, oldest first. Guarded by this.
+     */
+    final List<byte[]> mPending = new ArrayList<>();
+    int mPendingBytes = 0;
+
+    /**
+     * Changed by clear(), so a compaction started before does not replace the cleared file. Guarded by this.
+     */
+    int mGeneration = 0;
+
+    void map() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            if (file.length() != mCapacity) {
+                file.setLength(mCapacity);
+            }
+            //the mapping stays valid after the file is closed
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+        } finally {
+            file.close();
+        }
+    }
+
+    boolean isValidEnd(int end) {
+        return end >= HEADER_SIZE && end <= mCapacity;
+    }
+
+    /**
+     * Appends the event, a memory copy. If it does not fit, or the journal is being compacted, the event waits
+     * in memory, and the compaction is started in the background. At most half of the file waits, the oldest
+     * waiting events are dropped first. Events that can't be encoded, or are larger than half of the file,
+     * are dropped.
+     */
+    void append(@NonNull Object event) {
+        synchronized (this) {
+            mRecord.reset();
+            try {
+                mCodec.encode(event, mRecordOutput);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                return;
+            }
+            final int length = mRecord.size();
+            if (4 + length > (mCapacity - HEADER_SIZE) / 2) {
+                return;
+            }
+            if (!mCompacting && mBuffer.getInt(8) + 4 + length <= mCapacity) {
+                write(mRecord.buffer(), length);
+                return;
+            }
+            mPending.add(Arrays.copyOf(mRecord.buffer(), length));
+            mPendingBytes += 4 + length;
+            dropPending((mCapacity - HEADER_SIZE) / 2);
+            if (!mCompacting) {
+                mCompacting = true;
+                mCompactionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runCompaction();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Writes the record at the end, call with the lock held, and only if it fits.
+     */
+    void write(@NonNull byte[] record, int length) {
+        final int end = mBuffer.getInt(8);
+        mBuffer.putInt(end, length);
+        mBuffer.position(end + 4);
+        mBuffer.put(record, 0, length);
+        mBuffer.putInt(8, end + 4 + length);
+    }
+
+    /**
+     * Removes the given waiting records, written by the compaction already, call with the lock held.
+     */
+    void removePending(@NonNull List<byte[]> records) {
+        final Set<byte[]> removed = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        removed.addAll(records);
+        for (Iterator<byte[]> iterator = mPending.iterator(); iterator.hasNext(); ) {
+            final byte[] record = iterator.next();
+            if (removed.contains(record)) {
+                iterator.remove();
+                mPendingBytes -= 4 + record.length;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest waiting records until the rest fits in maxBytes, call with the lock held.
+     */
+    void dropPending(int maxBytes) {
+        while (mPendingBytes > maxBytes) {
+            mPendingBytes -= 4 + mPending.remove(0).length;
+        }
+    }
+
+    /**
+     * @return all valid records, oldest first, including the ones waiting for the compaction.
+     */
+    @NonNull
+    List<byte[]> readRecords() {
+        synchronized (this) {
+            final List<byte[]> records = readRecords(mBuffer.duplicate());
+            records.addAll(mPending);
+            return records;
+        }
+    }
+
+    /**
+     * @return all valid records of the file, oldest first. Reads through the given view, so it can be
+     * called without the lock, while the file is not written.
+     */
+    @NonNull
+    static List<byte[]> readRecords(@NonNull ByteBuffer buffer) {
+        final int end = buffer.getInt(8);
+        final List<byte[]> records = new ArrayList<>();
+        int position = HEADER_SIZE;
+        while (position + 4 <= end) {
+            final int length = buffer.getInt(position);
+            if (length < 0 || position + 4 + length > end) {
+                break;
+            }
+            final byte[] record = new byte[length];
+            buffer.position(position + 4);
+            buffer.get(record);
+            records.add(record);
+            position += 4 + length;
+        }
+        return records;
+    }
+
+    Object decode(@NonNull byte[] record) {
+        try {
+            return mCodec.decode(new DataInputStream(new ByteArrayInputStream(record)));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the last record of every event class, and the most recent records, in up to half of the file,
+     * the other half is left for the records waiting meanwhile. The records of the file, and the ones waiting
+     * when the compaction starts, are compacted together, so a waiting event replaces the older one of its class.
+     * The kept records are written to a temporary file, in their order, and the file replaces the journal,
+     * so the journal is never left half-compacted. Records that can't be decoded are removed.
+     * <p/>
+     * Call it with mCompacting set, without the lock. The file is read and rewritten without the lock,
+     * it is not written meanwhile, only the swap takes the lock. The records waiting after are written after.
+     */
+    void runCompaction() throws IOException {
+        try {
+            final ByteBuffer snapshot;
+            final List<byte[]> compactedPending;
+            final int generation;
+            synchronized (this) {
+                snapshot = mBuffer.duplicate();
+                compactedPending = new ArrayList<>(mPending);
+                generation = mGeneration;
+            }
+            final List<byte[]> records = readRecords(snapshot);
+            records.addAll(compactedPending);
+            final File tempFile = writeCompacted(records, (mCapacity - HEADER_SIZE) / 2);
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
+                } else if (tempFile.renameTo(mFile)) {
+                    map();
+                    removePending(compactedPending);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
+                    throw new IOException("Can not rename " + tempFile + " to " + mFile);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mCompacting = false;
+                dropPending(mCapacity - mBuffer.getInt(8));
+                for (byte[] record : mPending) {
+                    write(record, record.length);
+                }
+                mPending.clear();
+                mPendingBytes = 0;
+            }
+        }
+    }
+
+    @NonNull
+    File writeCompacted(@NonNull List<byte[]> records, int maxBytes) throws IOException {
+        final int count = records.size();
+        final boolean[] valid = new boolean[count];
+        final boolean[] keep = new boolean[count];
+        final Set<Class<?>> seenClasses = new HashSet<>();
+        //newest first, so the first record seen of every class is its last one
+        for (int i = count - 1; i >= 0; i--) {
+            final Object event = decode(records.get(i));
+            if (event != null) {
+                valid[i] = true;
+                keep[i] = seenClasses.add(event.getClass());
+                if (keep[i]) {
+                    maxBytes -= 4 + records.get(i).length;
+                }
+            }
+        }
+        //the most recent records, in the rest of maxBytes
+        int recent = 0;
+        int end = HEADER_SIZE;
+        for (int i = count - 1; i >= 0; i--) {
+            if (valid[i]) {
+                recent += 4 + records.get(i).length;
+                keep[i] |= recent <= maxBytes;
+                if (keep[i]) {
+                    end += 4 + records.get(i).length;
+                }
+            }
+        }
+
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(end);
+            for (int i = 0; i < count; i++) {
+                if (keep[i]) {
+                    output.writeInt(records.get(i).length);
+                    output.write(records.get(i));
+                }
+            }
+        } finally {
+            output.close();
+        }
+        return tempFile;
+    }
+
+    /**
+     * A ByteArrayOutputStream with access to its buffer, so the record is copied to the file directly.
+     */
+    static final class RecordBuffer extends ByteArrayOutputStream {
+
+        RecordBuffer() {
+            super(256);
+        }
+
+        @NonNull
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Times the event handler invocations, and reports the ones running longer than the threshold,
+ * see {@link EventBus#setSlowHandlerWatchdog(long, java.util.concurrent.TimeUnit, SlowHandlerListener)}.
+ * <p/>
+ * Every delivering thread has its own slot, it writes the handler, the event and the start time into it
+ * before the invocation, and clears it after, no lock and no allocation. The watchdog thread checks all slots
+ * twice per threshold, and captures the stack of a thread still running a slow handler, so the stack shows
+ * where it is stuck. A handler running over 1.5 threshold is always reported, once per invocation.
+ * <p/>
+ * The slot works like a seqlock: the invocation number is written after the other fields, and cleared
+ * before them, the watchdog reads it before and after the fields, and skips the slot if it changed.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class HandlerWatchdog implements Runnable {
+
+    final long mThresholdNanos;
+
+    @NonNull
+    final SlowHandlerListener mListener;
+
+    final CopyOnWriteArrayList<Slot> mSlots = new CopyOnWriteArrayList<>();
+
+    final ThreadLocal<Slot> mThreadSlot = new ThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+            Slot slot = new Slot(Thread.currentThread());
+            mSlots.add(slot);
+            return slot;
+        }
+    };
+
+    volatile boolean mHalted = false;
+
+    HandlerWatchdog(long thresholdNanos, @NonNull SlowHandlerListener listener) {
+        if (thresholdNanos <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive: " + thresholdNanos);
+        }
+        mThresholdNanos = thresholdNanos;
+        mListener = listener;
+    }
+
+    /**
+     * Marks the invocation start, in the delivering thread.
+     *
+     * @return the slot to pass to end(), or null for a nested invocation, the outer one is timed already.
+     */
+    @Nullable
+    Slot begin(@NonNull EventHandler eventHandler, @NonNull Object event) {
+        final Slot slot = mThreadSlot.get();
+        if (slot.mActive != 0) {
+            return null;
+        }
+        slot.mStartNanos = System.nanoTime();
+        slot.mEventHandler = eventHandler;
+        slot.mEvent = event;
+        slot.mActive = ++slot.mCount;
+        return slot;
+    }
+
+    void end(@NonNull Slot slot) {
+        slot.mActive = 0;
+        slot.mEventHandler = null;
+        slot.mEvent = null;
+    }
+
+    /**
+     * The watchdog loop, run it in its own thread.
+     */
+    @Override
+    public void run() {
+        final long interval = Math.max(1, mThresholdNanos / 2);
+        while (!mHalted) {
+            LockSupport.parkNanos(interval);
+            if (!mHalted) {
+                check(System.nanoTime());
+            }
+        }
+    }
+
+    void halt() {
+        mHalted = true;
+    }
+
+    void check(long now) {
+        for (Slot slot : mSlots) {
+            if (!slot.mThread.isAlive()) {
+                //e.g. a background executor thread that timed out
+                mSlots.remove(slot);
+                continue;
+            }
+            final long active = slot.mActive;
+            if (active == 0 || active == slot.mReported) {
+                continue;
+            }
+            final long startNanos = slot.mStartNanos;
+            final EventHandler eventHandler = slot.mEventHandler;
+            final Object event = slot.mEvent;
+            if (now - startNanos < mThresholdNanos) {
+                continue;
+            }
+            final StackTraceElement[] stackTrace = slot.mThread.getStackTrace();
+            if (slot.mActive != active || eventHandler == null || event == null) {
+                //finished meanwhile, the fields or the stack may belong to another invocation
+                continue;
+            }
+            slot.mReported = active;
+            report(eventHandler, event, slot.mThread, now - startNanos, stackTrace);
+        }
+    }
+
+    void report(@NonNull EventHandler eventHandler, @NonNull Object event, @NonNull Thread thread, long elapsedNanos,
+                @NonNull StackTraceElement[] stackTrace) {
+        final Class<?> subscriberClass;
+        final String methodName;
+        if (eventHandler.mConsumer != null) {
+            subscriberClass = eventHandler.mConsumer.getClass();
+            methodName = "accept";
+        } else {
+            final Object subscriber = eventHandler.getSubscriber();
+            subscriberClass = subscriber != null ? subscriber.getClass() : eventHandler.mMethod.getDeclaringClass();
+            methodName = eventHandler.mMethod.getName();
+        }
+        try {
+            mListener.onSlowHandler(new SlowHandlerReport(subscriberClass, methodName, event.getClass(),
+                    thread.getName(), elapsedNanos / 1000000, stackTrace));
+        } catch (RuntimeException e) {
+            //never stop the watchdog
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The invocation state of one thread. Written by its thread only.
+     */
+    static final class Slot {
+
+        @NonNull
+        final Thread mThread;
+
+        /**
+         * Number of the running invocation, 0 if idle.
+         */
+        volatile long mActive = 0;
+
+        /**
+         * Invocations counter, used by the own thread only.
+         */
+        long mCount = 0;
+
+        /**
+         * Number of the last reported invocation, used by the watchdog only.
+         */
+        long mReported = 0;
+
+        long mStartNanos;
+
+        @Nullable
+        EventHandler mEventHandler;
+
+        @Nullable
+        Object mEvent;
+
+        Slot(@NonNull Thread thread) {
+            mThread = thread;
+        }
+    }
+}
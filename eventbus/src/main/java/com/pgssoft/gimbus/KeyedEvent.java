@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.Nullable;
+
+/**
+ * An event that concerns one key, e.g. one conversation or document id.
+ * <p/>
+ * Besides the subscribers registered without a key, keyed events are delivered only to the
+ * subscribers registered with an equal key, see {@link EventBus#register(Object, Object)}.
+ * The subscribers registered with other keys are not even visited.
+ */
+public interface KeyedEvent {
+
+    /**
+     * @return the key of the event, compared with equals(). Null if the event concerns no key,
+     * it is delivered to the subscribers registered without a key only.
+     */
+    @Nullable
+    Object getEventKey();
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persists the subscriber scan results of the {@link Cache} in a compact binary file, so they can be
+ * restored on the next process start without the getDeclaredMethods() / getAnnotation() scanning.
+ * <p/>
+ * File format (DataOutput encoding):
+ * <pre>
+ * int    MAGIC
+ * int    FORMAT_VERSION
+ * UTF    checksum, usually identifies the APK or jar, the file is valid only for the same checksum
+ * int    number of subscriber classes
+ *   UTF    subscriber class name
+ *   int    number of event handlers
+ *     UTF    method name
+ *     UTF    event class name (the only parameter type)
+ *     UTF    filter method name, empty if none
+ *     byte   delivery thread
+ *     bool   immediate delivery
+ *     long   debounce, in milliseconds
+ *     long   throttle, in milliseconds
+ * </pre>
+ * Restoring still resolves every method with getDeclaredMethod(), but this is a direct lookup,
+ * much cheaper than scanning and reading annotations of all declared methods.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class MetadataStore {
+
+    static final int MAGIC = 0x67624d44; //"gbMD"
+    static final int FORMAT_VERSION = 4;
+
+    private MetadataStore() {
+    }
+
+    /**
+     * Writes all subscriber classes cached so far. Writes to a temporary file first, and renames it,
+     * so the file is never left half-written.
+     */
+    static void save(@NonNull File file, @NonNull String checksum) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(checksum);
+
+            //collect first, entries may be evicted while writing
+            Map<Class<?>, Map<Class<?>, Cache.EventHandlersCacheItem>> entries = new HashMap<>();
+            for (Class<?> subscriberClass : Cache.mEventHandlersCache.keys()) {
+                Map<Class<?>, Cache.EventHandlersCacheItem> eventHandlers = Cache.mEventHandlersCache.peek(subscriberClass);
+                if (eventHandlers != null) {
+                    entries.put(subscriberClass, eventHandlers);
+                }
+            }
+
+            output.writeInt(entries.size());
+            for (Map.Entry<Class<?>, Map<Class<?>, Cache.EventHandlersCacheItem>> entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey().getName());
+                int count = 0;
+                for (Cache.EventHandlersCacheItem first : entry.getValue().values()) {
+                    for (Cache.EventHandlersCacheItem item = first; item != null; item = item.nextItem) {
+                        count++;
+                    }
+                }
+                output.writeInt(count);
+                for (Map.Entry<Class<?>, Cache.EventHandlersCacheItem> eventHandlers : entry.getValue().entrySet()) {
+                    for (Cache.EventHandlersCacheItem item = eventHandlers.getValue(); item != null; item = item.nextItem) {
+                        output.writeUTF(item.eventHandlerMethod.getName());
+                        output.writeUTF(eventHandlers.getKey().getName());
+                        output.writeUTF(item.filterMethod != null ? item.filterMethod.getName() : "");
+                        output.writeByte(item.deliveryThread);
+                        output.writeBoolean(item.immediate);
+                        output.writeLong(item.debounceMs);
+                        output.writeLong(item.throttleMs);
+                    }
+                }
+            }
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Can not rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the file in one go, and puts its content into the Cache. Classes already cached are not changed.
+     * Classes, or methods, that can not be found are skipped, they will be scanned when needed.
+     * The whole file is parsed first, nothing is put into the Cache if it turns out to be corrupted.
+     *
+     * @return false if there is no file, or it was created for other checksum, or it is corrupted.
+     */
+    static boolean load(@NonNull File file, @NonNull String checksum, @NonNull ClassLoader classLoader) {
+        final byte[] content;
+        try {
+            content = readFully(file);
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(content));
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !checksum.equals(input.readUTF())) {
+                return false;
+            }
+
+            int classCount = input.readInt();
+            Map<Class<?>, Map<Class<?>, Cache.EventHandlersCacheItem>> loaded = new LinkedHashMap<>();
+            for (int c = 0; c < classCount; c++) {
+                String subscriberClassName = input.readUTF();
+                int handlerCount = input.readInt();
+
+                Class<?> subscriberClass = loadClass(subscriberClassName, classLoader);
+                Map<Class<?>, Cache.EventHandlersCacheItem> eventHandlers = new HashMap<>();
+                for (int h = 0; h < handlerCount; h++) {
+                    String methodName = input.readUTF();
+                    String eventClassName = input.readUTF();
+                    String filterMethodName = input.readUTF();
+                    @EventBus.DeliveryThread int deliveryThread = input.readByte();
+                    boolean immediate = input.readBoolean();
+                    long debounceMs = input.readLong();
+                    long throttleMs = input.readLong();
+
+                    Class<?> eventClass = subscriberClass != null ? loadClass(eventClassName, classLoader) : null;
+                    Method method = null;
+                    Method filterMethod = null;
+                    if (eventClass != null) {
+                        try {
+                            method = subscriberClass.getDeclaredMethod(methodName, eventClass);
+                            if (!filterMethodName.isEmpty()) {
+                                filterMethod = subscriberClass.getDeclaredMethod(filterMethodName, eventClass);
+                            }
+                        } catch (NoSuchMethodException ignored) {
+                            method = null;
+                        }
+                    }
+                    if (method == null) {
+                        subscriberClass = null;
+                        continue;
+                    }
+                    eventHandlers.put(eventClass, new Cache.EventHandlersCacheItem(method, filterMethod, deliveryThread, immediate,
+                            debounceMs, throttleMs, eventHandlers.get(eventClass)));
+                }
+                if (subscriberClass != null) {
+                    loaded.put(subscriberClass, eventHandlers);
+                }
+            }
+            if (input.available() != 0) {
+                return false;
+            }
+            for (Map.Entry<Class<?>, Map<Class<?>, Cache.EventHandlersCacheItem>> entry : loaded.entrySet()) {
+                Cache.mEventHandlersCache.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            //corrupted file, truncated or with invalid values
+            return false;
+        }
+    }
+
+    @Nullable
+    static Class<?> loadClass(@NonNull String className, @NonNull ClassLoader classLoader) {
+        try {
+            return Class.forName(className, false, classLoader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    static byte[] readFully(@NonNull File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large " + file);
+            }
+            byte[] content = new byte[(int) length];
+            new DataInputStream(input).readFully(content);
+            return content;
+        } finally {
+            input.close();
+        }
+    }
+}
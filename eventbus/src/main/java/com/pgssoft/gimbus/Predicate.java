@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Filters events of a functional subscription, see {@link EventBus#subscribe(Class, int, Object, Predicate, Consumer)}.
+ * <p/>
+ * It is an equivalent of the java.util.function.Predicate, which is not available on older Android
+ * versions. With retrolambda or Jack, a lambda can be passed.
+ */
+public interface Predicate<T> {
+
+    /**
+     * Decides if the event should be delivered, called in the dispatcher thread, before the event
+     * is passed to the delivery thread. Have to be cheap, and thread safe.
+     *
+     * @return true to deliver the event, false to drop it.
+     */
+    boolean test(@NonNull T event);
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.Nullable;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Producer side rate limit and sampling of one event class, see {@link EventBus#setRateLimit(Class, double, int)}
+ * and {@link EventBus#setSampling(Class, double)}.
+ * <p/>
+ * Checked when the event is posted or sent, before the Dispatcher is created, so a dropped event costs
+ * a map lookup, and a random number or a CAS. The instance is created once per event class and updated
+ * in place, so the counters survive the configuration changes.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class ProducerLimit {
+
+    /**
+     * Per thread generators, java.util.Random is thread safe, but contended when shared.
+     */
+    static final ThreadLocal<Random> sRandom = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /**
+     * The rate limit, null if there is no limit.
+     */
+    @Nullable
+    volatile TokenBucket mRateLimit = null;
+
+    /**
+     * Probability of the event to be kept, 1 if not sampled.
+     */
+    volatile double mSampleRate = 1;
+
+    final AtomicLong mRateLimited = new AtomicLong();
+    final AtomicLong mSampledOut = new AtomicLong();
+
+    /**
+     * Sampling goes first, the sampled out events do not use the rate limit permits.
+     *
+     * @return true if the event should be dispatched.
+     */
+    boolean admit() {
+        final double sampleRate = mSampleRate;
+        if (sampleRate < 1 && sRandom.get().nextDouble() >= sampleRate) {
+            mSampledOut.incrementAndGet();
+            return false;
+        }
+        final TokenBucket rateLimit = mRateLimit;
+        if (rateLimit != null && !rateLimit.tryAcquire()) {
+            mRateLimited.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity ring of the last events of one event type, see {@link EventBus#enableReplay(Class, int)}.
+ * <p/>
+ * The array is allocated once. Adding takes a sequence number from a counter, and publishes an immutable
+ * entry of the sequence number and the event in the slot, with no lock, so many threads can add at once.
+ * The entry replaces only an older one, so a slow writer does not overwrite a newer event. The snapshot
+ * checks the sequence number of every entry, and skips the slots that were overwritten.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class ReplayBuffer {
+
+    static final class Entry {
+        final long mSequence;
+        final Object mEvent;
+
+        Entry(long sequence, @NonNull Object event) {
+            mSequence = sequence;
+            mEvent = event;
+        }
+    }
+
+    final int mCapacity;
+
+    final AtomicReferenceArray<Entry> mEntries;
+
+    /**
+     * Sequence number of the next event.
+     */
+    final AtomicLong mNext = new AtomicLong();
+
+    ReplayBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mEntries = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * @return the sequence number of the event.
+     */
+    long add(@NonNull Object event) {
+        final long sequence = mNext.getAndIncrement();
+        final int slot = (int) (sequence % mCapacity);
+        final Entry entry = new Entry(sequence, event);
+        while (true) {
+            final Entry current = mEntries.get(slot);
+            if (current != null && current.mSequence > sequence) {
+                //a newer event is there already
+                return sequence;
+            }
+            if (mEntries.compareAndSet(slot, current, entry)) {
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * @return @NonNull the last events, oldest first. Events overwritten while reading are skipped.
+     */
+    @NonNull
+    List<Object> snapshot() {
+        final long next = mNext.get();
+        final long first = Math.max(0, next - mCapacity);
+        final List<Object> events = new ArrayList<>((int) (next - first));
+        for (long sequence = first; sequence < next; sequence++) {
+            final Entry entry = mEntries.get((int) (sequence % mCapacity));
+            if (entry != null && entry.mSequence == sequence) {
+                events.add(entry.mEvent);
+            }
+        }
+        return events;
+    }
+}
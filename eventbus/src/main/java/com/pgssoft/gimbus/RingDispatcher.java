@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of the posted events, in a preallocated ring, with one consumer thread, see {@link EventBus#enableRingDispatch(int, int)}.
+ * <p/>
+ * Producers claim a sequence number with a CAS on the cursor, write the event, and its attachment, e.g. the channel
+ * it was posted through, into its slot, and mark the slot
+ * as published, no lock and no allocation. A producer waits only if the ring is full, until the consumer frees
+ * the slot. The consumer waits for the next slot according to the wait strategy, then takes every published
+ * event that follows it in one batch, and reports the progress once per batch.
+ * <p/>
+ * Every slot keeps the lap number (sequence / size) of its last published event, so a slot is published
+ * for the sequence when its lap number matches, and producers can publish out of order.
+ * <p/>
+ * The consumer can't wait for itself: events it publishes, e.g. posted by a handler, into a full ring
+ * are kept in an overflow queue, and moved to the ring after the batch, in order, as the room allows.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class RingDispatcher implements Runnable {
+
+    /**
+     * Called in the consumer thread, for every event, in order.
+     */
+    interface EventConsumer {
+        void accept(@NonNull Object event, @Nullable Object attachment);
+    }
+
+    static final int SPIN_TRIES = 100;
+    static final int YIELD_TRIES = 100;
+    static final long SLEEP_NANOS = 100 * 1000;
+
+    final int mSize;
+    final int mMask;
+    final int mLapShift;
+
+    @EventBus.WaitStrategy
+    final int mWaitStrategy;
+
+    @NonNull
+    final EventConsumer mConsumer;
+
+    final Object[] mEvents;
+
+    final Object[] mAttachments;
+
+    /**
+     * Lap number of the last event published in every slot.
+     */
+    final AtomicIntegerArray mPublished;
+
+    /**
+     * The last claimed sequence.
+     */
+    final AtomicLong mCursor = new PaddedAtomicLong(-1);
+
+    /**
+     * The last sequence consumed, its slot and all slots before can be reused.
+     */
+    final AtomicLong mConsumed = new PaddedAtomicLong(-1);
+
+    /**
+     * Last value of mConsumed seen by the producers, so they read mConsumed only when the ring looks full.
+     */
+    volatile long mConsumedCache = -1;
+
+    final ReentrantLock mLock = new ReentrantLock();
+    final Condition mPublishedCondition = mLock.newCondition();
+
+    /**
+     * True while the consumer is blocked, or about to block, so the producers have to signal it.
+     */
+    volatile boolean mConsumerWaiting = false;
+
+    volatile boolean mHalted = false;
+
+    /**
+     * The consumer thread, set when it starts.
+     */
+    volatile Thread mConsumerThread;
+
+    /**
+     * Events published by the consumer while the ring was full, with their attachments, oldest first.
+     * Used by the consumer thread only.
+     */
+    final ArrayDeque<Object[]> mOverflow = new ArrayDeque<>();
+
+    /**
+     * @param size     number of slots, have to be a power of two.
+     * @param consumer called in the consumer thread, for every event, in order.
+     */
+    RingDispatcher(int size, @EventBus.WaitStrategy int waitStrategy, @NonNull EventConsumer consumer) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size must be a power of two: " + size);
+        }
+        mSize = size;
+        mMask = size - 1;
+        mLapShift = Integer.numberOfTrailingZeros(size);
+        mWaitStrategy = waitStrategy;
+        mConsumer = consumer;
+        mEvents = new Object[size];
+        mAttachments = new Object[size];
+        mPublished = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            mPublished.set(i, -1);
+        }
+    }
+
+    /**
+     * Queues the event, waits only if the ring is full. Can be called from any thread, the consumer
+     * thread does not wait, see mOverflow.
+     */
+    void publish(@NonNull Object event) {
+        publish(event, null);
+    }
+
+    /**
+     * Same as {@link #publish(Object)}, the attachment is passed to the consumer with the event.
+     */
+    void publish(@NonNull Object event, @Nullable Object attachment) {
+        final boolean consumer = Thread.currentThread() == mConsumerThread;
+        if (consumer && !mOverflow.isEmpty()) {
+            //keep the order of the events published before
+            mOverflow.add(new Object[]{event, attachment});
+            return;
+        }
+        final long sequence = claim(!consumer);
+        if (sequence < 0) {
+            mOverflow.add(new Object[]{event, attachment});
+            return;
+        }
+        write(sequence, event, attachment);
+    }
+
+    /**
+     * Claims the next sequence. If the ring is full, waits for the consumer, or returns -1 if wait is false.
+     */
+    long claim(boolean wait) {
+        for (; ; ) {
+            final long current = mCursor.get();
+            final long sequence = current + 1;
+            final long wrapPoint = sequence - mSize;
+            if (wrapPoint > mConsumedCache) {
+                final long consumed = mConsumed.get();
+                if (wrapPoint > consumed) {
+                    if (!wait) {
+                        return -1;
+                    }
+                    //full, wait for the consumer
+                    LockSupport.parkNanos(1);
+                    continue;
+                }
+                mConsumedCache = consumed;
+            }
+            if (mCursor.compareAndSet(current, sequence)) {
+                return sequence;
+            }
+        }
+    }
+
+    void write(long sequence, @NonNull Object event, @Nullable Object attachment) {
+        final int slot = (int) sequence & mMask;
+        mEvents[slot] = event;
+        mAttachments[slot] = attachment;
+        //volatile write, publishes the event, and is ordered before the mConsumerWaiting read below
+        mPublished.set(slot, (int) (sequence >>> mLapShift));
+        if (mConsumerWaiting) {
+            signalConsumer();
+        }
+    }
+
+    /**
+     * The consumer loop, run it in the dispatcher thread.
+     */
+    @Override
+    public void run() {
+        mConsumerThread = Thread.currentThread();
+        long next = mConsumed.get() + 1;
+        while (waitFor(next)) {
+            //take all events published so far, in one batch
+            long last = next;
+            final long cursor = mCursor.get();
+            while (last < cursor && isPublished(last + 1)) {
+                last++;
+            }
+            for (long sequence = next; sequence <= last; sequence++) {
+                final int slot = (int) sequence & mMask;
+                final Object event = mEvents[slot];
+                final Object attachment = mAttachments[slot];
+                mEvents[slot] = null;
+                mAttachments[slot] = null;
+                try {
+                    mConsumer.accept(event, attachment);
+                } catch (RuntimeException e) {
+                    //never stop the consumer, the ring would fill up
+                    e.printStackTrace();
+                }
+            }
+            mConsumed.lazySet(last);
+            next = last + 1;
+            //the consumer's own events, as long as there is room, so it never waits for itself
+            while (!mOverflow.isEmpty()) {
+                final long sequence = claim(false);
+                if (sequence < 0) {
+                    break;
+                }
+                final Object[] overflowed = mOverflow.poll();
+                write(sequence, overflowed[0], overflowed[1]);
+            }
+        }
+    }
+
+    /**
+     * Stops the consumer, once the events published so far are consumed. Events published later are not consumed.
+     */
+    void halt() {
+        mHalted = true;
+        signalConsumer();
+    }
+
+    boolean isPublished(long sequence) {
+        return mPublished.get((int) sequence & mMask) == (int) (sequence >>> mLapShift);
+    }
+
+    void signalConsumer() {
+        mLock.lock();
+        try {
+            mPublishedCondition.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the sequence is published, according to the wait strategy.
+     *
+     * @return false if halted, and the sequence is not published.
+     */
+    boolean waitFor(long sequence) {
+        int tries = 0;
+        while (!isPublished(sequence)) {
+            if (mHalted) {
+                return false;
+            }
+            switch (mWaitStrategy) {
+                case EventBus.WAIT_BUSY_SPIN:
+                    break;
+                case EventBus.WAIT_YIELDING:
+                    if (++tries > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case EventBus.WAIT_SLEEPING:
+                    if (++tries > SPIN_TRIES + YIELD_TRIES) {
+                        LockSupport.parkNanos(SLEEP_NANOS);
+                    } else if (tries > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                default:
+                    if (++tries > SPIN_TRIES) {
+                        block(sequence);
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until the sequence is published. The flag is set before the last check, and the producers
+     * read it after publishing, so either the check sees the event, or the producer sees the flag.
+     */
+    void block(long sequence) {
+        mLock.lock();
+        try {
+            mConsumerWaiting = true;
+            while (!isPublished(sequence) && !mHalted) {
+                mPublishedCondition.awaitUninterruptibly();
+            }
+        } finally {
+            mConsumerWaiting = false;
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * AtomicLong on its own cache line, so the cursor and the consumer progress written by different
+     * threads do not invalidate each other's cache line.
+     */
+    @SuppressWarnings("unused")
+    static final class PaddedAtomicLong extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        PaddedAtomicLong(long initialValue) {
+            super(initialValue);
+        }
+    }
+}
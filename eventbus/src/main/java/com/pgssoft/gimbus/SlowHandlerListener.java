@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives the reports of the slow event handlers, see {@link EventBus#setSlowHandlerWatchdog(long, TimeUnit, SlowHandlerListener)}.
+ */
+public interface SlowHandlerListener {
+
+    /**
+     * Called in the watchdog thread, while the handler is still running.
+     */
+    void onSlowHandler(@NonNull SlowHandlerReport report);
+
+}
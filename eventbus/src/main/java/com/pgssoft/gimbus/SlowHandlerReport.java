@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Report of an event handler running longer than the watchdog threshold, see {@link SlowHandlerListener}.
+ */
+public final class SlowHandlerReport {
+
+    /**
+     * Class of the subscriber, or of the Consumer of a functional subscription.
+     */
+    @NonNull
+    public final Class<?> subscriberClass;
+
+    /**
+     * Name of the handler method.
+     */
+    @NonNull
+    public final String methodName;
+
+    /**
+     * Class of the event being handled.
+     */
+    @NonNull
+    public final Class<?> eventClass;
+
+    /**
+     * Name of the thread running the handler.
+     */
+    @NonNull
+    public final String threadName;
+
+    /**
+     * Time the handler has been running so far, in milliseconds.
+     */
+    public final long elapsedMillis;
+
+    /**
+     * Stack of the thread running the handler, captured while the handler was running.
+     */
+    @NonNull
+    public final StackTraceElement[] stackTrace;
+
+    /*package*/ SlowHandlerReport(@NonNull Class<?> subscriberClass, @NonNull String methodName, @NonNull Class<?> eventClass,
+                                  @NonNull String threadName, long elapsedMillis, @NonNull StackTraceElement[] stackTrace) {
+        this.subscriberClass = subscriberClass;
+        this.methodName = methodName;
+        this.eventClass = eventClass;
+        this.threadName = threadName;
+        this.elapsedMillis = elapsedMillis;
+        this.stackTrace = stackTrace;
+    }
+
+    @Override
+    public String toString() {
+        return "SlowHandlerReport{" + subscriberClass.getName() + "." + methodName + "(" + eventClass.getName()
+                + "), thread=" + threadName + ", elapsed=" + elapsedMillis + "ms}";
+    }
+}
@@ -33,4 +33,37 @@ public @interface Subscribe {
      */
     @EventBus.DeliveryThread int value() default EventBus.DELIVER_IN_DEFAULT_THREAD;
 
+    /**
+     * Name of the filter method, declared in the same class as the subscriber method, with the same
+     * parameter type, returning boolean. Empty by default, no filter.
+     * <p/>
+     * The filter is called in the dispatcher thread, before the event is passed to the delivery thread,
+     * events it rejects never reach the UI thread queue, or the background executor. It have to be
+     * cheap, and thread safe.
+     */
+    String filter() default "";
+
+    /**
+     * Deliver the event immediately, without posting it, when it is dispatched in the delivery thread
+     * already, e.g. sent in the UI thread to a DELIVER_IN_UI_THREAD handler. False by default, the event
+     * is always posted to the delivery thread. See {@link EventBus#setImmediateDelivery(boolean)}.
+     */
+    boolean immediate() default false;
+
+    /**
+     * Delivers only the last event of a burst, after no other event came for the given number of
+     * milliseconds, e.g. for search-as-you-type. 0 by default, no debounce.
+     * <p/>
+     * The timer runs in the dispatcher thread, the ring dispatcher thread if enabled, the events replaced
+     * by newer ones are never passed to the delivery thread. Can't be used together with throttleMs.
+     */
+    long debounceMs() default 0;
+
+    /**
+     * Delivers at most one event per given number of milliseconds, the first one, the other events of
+     * the period are dropped in the dispatcher thread, e.g. for scroll events. 0 by default, no throttle.
+     * Can't be used together with debounceMs.
+     */
+    long throttleMs() default 0;
+
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handle of the functional subscription, created by {@link EventBus#subscribe(Class, int, Consumer)}.
+ * <p/>
+ * The subscription is referenced strongly by the event bus, it stays active until {@link #close()} is called.
+ * Closing does not need to search the event bus registry, the subscription knows its place in it.
+ */
+public final class Subscription implements Closeable {
+
+    @NonNull
+    final EventBus mEventBus;
+
+    @NonNull
+    final Class<?> mEventClass;
+
+    @NonNull
+    final EventHandler mEventHandler;
+
+    /**
+     * The key of the subscription, null if not keyed.
+     */
+    @Nullable
+    final Object mKey;
+
+    /**
+     * The registered event handlers for mEventClass, the one that contains mEventHandler.
+     * Null for keyed subscriptions, they are kept in the keyed index.
+     */
+    @Nullable
+    final Set<EventHandler> mRegisteredEventHandlers;
+
+    final AtomicBoolean mClosed = new AtomicBoolean();
+
+    @SuppressWarnings("unchecked")
+    /*package*/ Subscription(@NonNull EventBus eventBus, @NonNull Class<?> eventClass,
+                             @EventBus.DeliveryThread int deliveryThread, @Nullable Object key,
+                             @Nullable Predicate<?> filter, @NonNull Consumer<?> consumer) {
+        mEventBus = eventBus;
+        mEventClass = eventClass;
+        mEventHandler = new EventHandler(this, (Consumer<Object>) consumer, (Predicate<Object>) filter,
+                Dispatcher.getDispatchingMethod(deliveryThread),
+                deliveryThread == EventBus.DELIVER_IN_DEFAULT_THREAD ? eventBus.assignDefaultThread(this) : null);
+        mKey = key;
+        mRegisteredEventHandlers = key == null ? eventBus.getRegisteredEventHandlers(eventClass) : null;
+    }
+
+    /**
+     * @return the class of events received by this subscription, including its subclasses.
+     */
+    @NonNull
+    public Class<?> getEventClass() {
+        return mEventClass;
+    }
+
+    /**
+     * @return true if the subscription was already closed.
+     */
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * Ends the subscription, the consumer will not receive events posted after it returns.
+     * Can be called many times, from any thread.
+     */
+    @Override
+    public void close() {
+        if (mClosed.compareAndSet(false, true)) {
+            if (mRegisteredEventHandlers == null) {
+                mEventBus.removeKeyedEventHandlers(mEventClass, mKey, Collections.singleton(mEventHandler));
+            } else if (mRegisteredEventHandlers.remove(mEventHandler)) {
+                mEventBus.onRegistryChanged(mEventClass);
+            }
+            mEventBus.mSubscribersDefaultThreads.remove(new IdentityWeakReferenceKey<Object>(this));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free and allocation-free rate limiter.
+ * <p/>
+ * Implemented as the "virtual scheduling" variant of the token bucket: instead of counting tokens,
+ * it keeps the theoretical time when the next permit will be free. Acquiring a permit moves this
+ * time forward by one interval, and fails if it would move it further than the burst allows.
+ * This needs a single AtomicLong and one CAS per acquire.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class TokenBucket {
+
+    /**
+     * Time needed to refill one permit.
+     */
+    final long mNanosPerPermit;
+
+    /**
+     * How far the theoretical arrival time may run ahead of now, it is the burst size expressed in time.
+     */
+    final long mBurstNanos;
+
+    /**
+     * Theoretical arrival time of the next permit, in System.nanoTime() units.
+     */
+    final AtomicLong mNextFreeNanos;
+
+    /**
+     * @param permitsPerSecond rate of the permits, have to be positive.
+     * @param burst            number of permits that can be acquired at once, after a quiet period.
+     */
+    TokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst have to be positive");
+        }
+        mNanosPerPermit = Math.max(1, (long) (1e9 / permitsPerSecond));
+        mBurstNanos = mNanosPerPermit * burst;
+        mNextFreeNanos = new AtomicLong(System.nanoTime() - mBurstNanos);
+    }
+
+    /**
+     * Tries to take one permit, never blocks.
+     *
+     * @return true if permit was acquired, false if the rate limit is exceeded.
+     */
+    boolean tryAcquire() {
+        final long now = System.nanoTime();
+        while (true) {
+            long nextFree = mNextFreeNanos.get();
+            //after a quiet period the permits do not accumulate, it starts from now
+            long newNextFree = Math.max(nextFree, now) + mNanosPerPermit;
+            if (newNextFree - now > mBurstNanos) {
+                return false;
+            }
+            if (mNextFreeNanos.compareAndSet(nextFree, newNextFree)) {
+                return true;
+            }
+        }
+    }
+}
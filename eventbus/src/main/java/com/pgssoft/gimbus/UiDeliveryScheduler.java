@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the DELIVER_IN_UI_THREAD events in frame sized chunks, see {@link EventBus#setUiFrameBudget(long, java.util.concurrent.TimeUnit)}.
+ * <p/>
+ * Deliverers are queued, and drained once per frame, until the frame budget is used. The rest waits
+ * for the next frame, so a burst of events can't block the UI thread for many frames in a row.
+ * At least one Deliverer is run per frame, so the queue always makes progress.
+ * <p/>
+ * The frames and the time are provided by the FrameScheduler and the Clock, so the scheduler can be
+ * tested without Android.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class UiDeliveryScheduler implements Executor {
+
+    /**
+     * Source of the time, in nanoseconds.
+     */
+    interface Clock {
+        long nanoTime();
+    }
+
+    /**
+     * Runs the given Runnable on the next frame, in the UI thread.
+     */
+    interface FrameScheduler {
+        void scheduleFrame(@NonNull Runnable frame);
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    @NonNull
+    final FrameScheduler mFrameScheduler;
+
+    @NonNull
+    final Clock mClock;
+
+    final long mBudgetNanos;
+
+    final Queue<Runnable> mQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * True when a frame is scheduled, or being drained, so it is not scheduled twice.
+     */
+    final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    final AtomicLong mDelivered = new AtomicLong();
+    final AtomicLong mFrames = new AtomicLong();
+    final AtomicLong mDeferredFrames = new AtomicLong();
+    final AtomicLong mDeferredDeliveries = new AtomicLong();
+
+    final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    UiDeliveryScheduler(@NonNull FrameScheduler frameScheduler, @NonNull Clock clock, long budgetNanos) {
+        mFrameScheduler = frameScheduler;
+        mClock = clock;
+        mBudgetNanos = budgetNanos;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable deliverer) {
+        mQueue.add(deliverer);
+        if (mScheduled.compareAndSet(false, true)) {
+            mFrameScheduler.scheduleFrame(mDrain);
+        }
+    }
+
+    /**
+     * Runs queued Deliverers until the budget is used, then schedules the next frame if anything is left.
+     */
+    void drain() {
+        final long start = mClock.nanoTime();
+        mFrames.incrementAndGet();
+
+        Runnable deliverer;
+        while ((deliverer = mQueue.poll()) != null) {
+            deliverer.run();
+            mDelivered.incrementAndGet();
+            if (mClock.nanoTime() - start >= mBudgetNanos && !mQueue.isEmpty()) {
+                //out of budget, the rest waits for the next frame. mScheduled stays set.
+                mDeferredFrames.incrementAndGet();
+                mDeferredDeliveries.addAndGet(mQueue.size());
+                mFrameScheduler.scheduleFrame(mDrain);
+                return;
+            }
+        }
+
+        mScheduled.set(false);
+        //a Deliverer could be queued after the last poll(), but before the flag was cleared
+        if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true)) {
+            mFrameScheduler.scheduleFrame(mDrain);
+        }
+    }
+
+    @NonNull
+    UiDeliveryStatistics getStatistics() {
+        return new UiDeliveryStatistics(mDelivered.get(), mFrames.get(), mDeferredFrames.get(),
+                mDeferredDeliveries.get(), mQueue.size());
+    }
+
+    /**
+     * @return the frame scheduler for the UI thread, aligned to the Choreographer frames if available.
+     */
+    @NonNull
+    static FrameScheduler createUiFrameScheduler(@NonNull Handler uiThreadHandler) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new ChoreographerFrameScheduler(uiThreadHandler);
+        }
+        return new HandlerFrameScheduler(uiThreadHandler);
+    }
+
+    /**
+     * Runs the frames on the Choreographer frame callbacks.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    static final class ChoreographerFrameScheduler implements FrameScheduler {
+
+        @NonNull
+        final Handler mUiThreadHandler;
+
+        /**
+         * The UI thread Choreographer, it can be obtained in the UI thread only, so it is set on the first frame.
+         */
+        volatile Choreographer mChoreographer;
+
+        ChoreographerFrameScheduler(@NonNull Handler uiThreadHandler) {
+            mUiThreadHandler = uiThreadHandler;
+        }
+
+        @Override
+        public void scheduleFrame(@NonNull final Runnable frame) {
+            final Choreographer.FrameCallback callback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    frame.run();
+                }
+            };
+            Choreographer choreographer = mChoreographer;
+            if (choreographer != null) {
+                //postFrameCallback() is thread safe
+                choreographer.postFrameCallback(callback);
+            } else {
+                mUiThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mChoreographer = Choreographer.getInstance();
+                        mChoreographer.postFrameCallback(callback);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Fallback for the API 15, without the Choreographer. Runs the frames as separate UI thread messages,
+     * so the pending input and drawing is processed between them.
+     */
+    static final class HandlerFrameScheduler implements FrameScheduler {
+
+        @NonNull
+        final Handler mUiThreadHandler;
+
+        HandlerFrameScheduler(@NonNull Handler uiThreadHandler) {
+            mUiThreadHandler = uiThreadHandler;
+        }
+
+        @Override
+        public void scheduleFrame(@NonNull Runnable frame) {
+            mUiThreadHandler.post(frame);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+/**
+ * Snapshot of the statistics of the frame budgeted UI thread delivery, see {@link EventBus#setUiFrameBudget(long, java.util.concurrent.TimeUnit)}.
+ */
+public final class UiDeliveryStatistics {
+
+    /**
+     * Number of events delivered in the UI thread.
+     */
+    public final long deliveredCount;
+
+    /**
+     * Number of frames that delivered events.
+     */
+    public final long frameCount;
+
+    /**
+     * Number of frames that used the whole budget, and left events for the next frame.
+     */
+    public final long deferredFrameCount;
+
+    /**
+     * Number of deliveries left for the next frame, summed over all frames. An event waiting
+     * for many frames is counted on every one of them.
+     */
+    public final long deferredDeliveryCount;
+
+    /**
+     * Number of events waiting for delivery.
+     */
+    public final int pendingCount;
+
+    /*package*/ UiDeliveryStatistics(long deliveredCount, long frameCount, long deferredFrameCount,
+                                     long deferredDeliveryCount, int pendingCount) {
+        this.deliveredCount = deliveredCount;
+        this.frameCount = frameCount;
+        this.deferredFrameCount = deferredFrameCount;
+        this.deferredDeliveryCount = deferredDeliveryCount;
+        this.pendingCount = pendingCount;
+    }
+
+    @Override
+    public String toString() {
+        return "UiDeliveryStatistics{delivered=" + deliveredCount + ", frames=" + frameCount
+                + ", deferredFrames=" + deferredFrameCount + ", deferredDeliveries=" + deferredDeliveryCount
+                + ", pending=" + pendingCount + "}";
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the work stealing background executor, see {@link EventBus#getWorkStealingExecutor()}.
+ * <p/>
+ * A separate class, so the ForkJoinPool, available since API 21, is not referenced by the EventBus on older versions.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+/*package*/ final class WorkStealingPool {
+
+    private WorkStealingPool() {
+    }
+
+    /**
+     * @return @NonNull pool in the async mode, its queues are FIFO, as the deliveries are never joined.
+     */
+    @NonNull
+    static ForkJoinPool create(int parallelism) {
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                    @Override
+                    protected void onStart() {
+                        super.onStart();
+                        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    }
+                };
+                thread.setName(EventBus.WORK_STEALING_THREAD_NAME + mCount.getAndIncrement());
+                return thread;
+            }
+        }, null, true);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EventJournal tests, on the plain JVM, without an EventBus.
+ */
+public class EventJournalTest {
+
+    /**
+     * Encodes Strings, Integers, Longs and Doubles, with a type tag byte.
+     */
+    static final EventCodec CODEC = new EventCodec() {
+        @Override
+        public boolean canEncode(Object event) {
+            return event instanceof String || event instanceof Integer
+                    || event instanceof Long || event instanceof Double;
+        }
+
+        @Override
+        public void encode(Object event, DataOutput output) throws IOException {
+            if (event instanceof String) {
+                output.writeByte(1);
+                output.writeUTF((String) event);
+            } else if (event instanceof Integer) {
+                output.writeByte(2);
+                output.writeInt((Integer) event);
+            } else if (event instanceof Long) {
+                output.writeByte(3);
+                output.writeLong((Long) event);
+            } else {
+                output.writeByte(4);
+                output.writeDouble((Double) event);
+            }
+        }
+
+        @Override
+        public Object decode(DataInput input) throws IOException {
+            switch (input.readByte()) {
+                case 1:
+                    return input.readUTF();
+                case 2:
+                    return input.readInt();
+                case 3:
+                    return input.readLong();
+                case 4:
+                    return input.readDouble();
+                default:
+                    throw new IOException("Unknown type");
+            }
+        }
+    };
+
+    /**
+     * Runs the compaction in the appending thread.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        Cache.stickyEvents.clear();
+    }
+
+    @Test
+    public void testAppendAndReopen() throws IOException {
+        File file = new File(mFolder.getRoot(), "events.journal");
+        EventJournal journal = new EventJournal(file, CODEC, 4096);
+        journal.append("a");
+        journal.append(1);
+        journal.append("b");
+        assertEquals(Arrays.<Object>asList("a", 1, "b"), journal.read());
+
+        //the next start
+        journal = new EventJournal(file, CODEC, 4096);
+        assertEquals(Arrays.<Object>asList("a", 1, "b"), journal.read());
+
+        assertEquals(2, journal.restoreSticky());
+        assertEquals("b", Cache.stickyEvents.get(String.class));
+        assertEquals(1, Cache.stickyEvents.get(Integer.class));
+
+        journal.clear();
+        assertEquals(0, journal.size());
+        assertEquals(0, journal.read().size());
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        File file = new File(mFolder.getRoot(), "events.journal");
+        //4 bytes length + 1 byte tag + 4 bytes int = 9 bytes per Integer record
+        EventJournal journal = new EventJournal(file, CODEC, EventJournal.HEADER_SIZE + 20 * 9);
+        journal.mCompactionExecutor = DIRECT;
+        journal.append("sticky");
+        for (int i = 0; i < 100; i++) {
+            journal.append(i);
+        }
+
+        //the last String, and the most recent Integers are kept, in order
+        List<Object> events = journal.read();
+        assertEquals("sticky", events.get(0));
+        assertEquals(99, events.get(events.size() - 1));
+        for (int i = 2; i < events.size(); i++) {
+            assertEquals((Integer) events.get(i - 1) + 1, events.get(i));
+        }
+        assertTrue(events.size() > 5);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        //compacted content survives the next start
+        journal = new EventJournal(file, CODEC, EventJournal.HEADER_SIZE + 20 * 9);
+        assertEquals(events, journal.read());
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws IOException {
+        File file = new File(mFolder.getRoot(), "events.journal");
+        EventJournal journal = new EventJournal(file, CODEC, EventJournal.HEADER_SIZE + 20 * 9);
+        final List<Runnable> tasks = new ArrayList<>();
+        journal.mCompactionExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        journal.append("sticky");
+        for (int i = 0; i < 100; i++) {
+            journal.append(i);
+        }
+
+        //append does not compact, the compaction is scheduled once, the waiting events are readable
+        assertEquals(1, tasks.size());
+        List<Object> events = journal.read();
+        assertEquals("sticky", events.get(0));
+        assertEquals(99, events.get(events.size() - 1));
+        assertEquals(EventJournal.HEADER_SIZE + journal.size() - 10 * 9, journal.mBuffer.getInt(8));
+
+        //the waiting events are compacted with the file, the most recent ones fill the rest of its half
+        tasks.get(0).run();
+        events = journal.read();
+        assertEquals(Arrays.<Object>asList("sticky", 93, 94, 95, 96, 97, 98, 99), events);
+        assertEquals(0, journal.mPending.size());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        //cleared while compacting, the compaction does not bring the events back
+        journal.append("a");
+        for (int i = 0; i < 20; i++) {
+            journal.append(i);
+        }
+        assertEquals(2, tasks.size());
+        journal.clear();
+        tasks.get(1).run();
+        assertEquals(0, journal.size());
+        assertEquals(0, journal.read().size());
+        journal = new EventJournal(file, CODEC, EventJournal.HEADER_SIZE + 20 * 9);
+        assertEquals(0, journal.read().size());
+    }
+
+    @Test
+    public void testCompactionKeepsNewestOfEveryClass() throws IOException {
+        File file = new File(mFolder.getRoot(), "events.journal");
+        //8 bytes per one letter String, 9 per Integer, 13 per Long and Double, the first six fill the file
+        EventJournal journal = new EventJournal(file, CODEC, EventJournal.HEADER_SIZE + 60);
+        final List<Runnable> tasks = new ArrayList<>();
+        journal.mCompactionExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        journal.append("a");
+        journal.append(1);
+        journal.append(1L);
+        journal.append(1.0);
+        journal.append("b");
+        journal.append(2);
+        journal.append(2L);
+        journal.append("c");
+        assertEquals(1, tasks.size());
+
+        //the waiting events replace the older ones of their classes
+        tasks.get(0).run();
+        assertEquals(Arrays.<Object>asList(1.0, 2, 2L, "c"), journal.read());
+        assertEquals(0, journal.mPending.size());
+
+        journal = new EventJournal(file, CODEC, EventJournal.HEADER_SIZE + 60);
+        assertEquals(4, journal.restoreSticky());
+        assertEquals("c", Cache.stickyEvents.get(String.class));
+        assertEquals(2, Cache.stickyEvents.get(Integer.class));
+        assertEquals(2L, Cache.stickyEvents.get(Long.class));
+        assertEquals(1.0, Cache.stickyEvents.get(Double.class));
+    }
+
+    @Test
+    public void testInterruptedAppend() throws IOException {
+        File file = new File(mFolder.getRoot(), "events.journal");
+        EventJournal journal = new EventJournal(file, CODEC, 4096);
+        journal.append("a");
+        int end = EventJournal.HEADER_SIZE + journal.size();
+
+        //a record written, but the process died before the end was updated
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(end);
+        raw.writeInt(1000);
+        raw.writeByte(1);
+        raw.close();
+
+        journal = new EventJournal(file, CODEC, 4096);
+        assertEquals(Arrays.<Object>asList("a"), journal.read());
+        journal.append("b");
+        assertEquals(Arrays.<Object>asList("a", "b"), journal.read());
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        File file = new File(mFolder.getRoot(), "events.journal");
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.writeInt(12345);
+        raw.close();
+
+        EventJournal journal = new EventJournal(file, CODEC, 4096);
+        assertEquals(0, journal.read().size());
+        journal.append("a");
+        assertEquals(Arrays.<Object>asList("a"), journal.read());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HandlerWatchdog tests, on the plain JVM. The checks are called directly, the watchdog thread is not started.
+ */
+public class HandlerWatchdogTest {
+
+    static final long THRESHOLD = TimeUnit.MILLISECONDS.toNanos(100);
+
+    final List<SlowHandlerReport> mReports = Collections.synchronizedList(new ArrayList<SlowHandlerReport>());
+
+    final HandlerWatchdog mWatchdog = new HandlerWatchdog(THRESHOLD, new SlowHandlerListener() {
+        @Override
+        public void onSlowHandler(SlowHandlerReport report) {
+            mReports.add(report);
+        }
+    });
+
+    @SuppressWarnings("unused")
+    void onEvent(Object event) {
+    }
+
+    EventHandler createEventHandler() throws Exception {
+        return new EventHandler(this, HandlerWatchdogTest.class.getDeclaredMethod("onEvent", Object.class),
+                Dispatcher.IN_DISPATCHER_THREAD);
+    }
+
+    @Test
+    public void testFastHandlerNotReported() throws Exception {
+        HandlerWatchdog.Slot slot = mWatchdog.begin(createEventHandler(), "event");
+        assertNotNull(slot);
+        mWatchdog.end(slot);
+        mWatchdog.check(System.nanoTime() + 10 * THRESHOLD);
+        assertTrue(mReports.isEmpty());
+    }
+
+    @Test
+    public void testNestedInvocationNotTimed() throws Exception {
+        HandlerWatchdog.Slot slot = mWatchdog.begin(createEventHandler(), "event");
+        assertNotNull(slot);
+        assertNull(mWatchdog.begin(createEventHandler(), "nested"));
+        mWatchdog.end(slot);
+        assertNotNull(mWatchdog.begin(createEventHandler(), "next"));
+    }
+
+    @Test
+    public void testSlowHandlerReportedOnce() throws Exception {
+        final EventHandler eventHandler = createEventHandler();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HandlerWatchdog.Slot slot = mWatchdog.begin(eventHandler, 42);
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                } finally {
+                    mWatchdog.end(slot);
+                }
+            }
+        }, "slow-handler");
+        thread.start();
+        started.await();
+
+        //not slow yet
+        mWatchdog.check(System.nanoTime());
+        assertTrue(mReports.isEmpty());
+
+        mWatchdog.check(System.nanoTime() + 2 * THRESHOLD);
+        assertEquals(1, mReports.size());
+        SlowHandlerReport report = mReports.get(0);
+        assertEquals(HandlerWatchdogTest.class, report.subscriberClass);
+        assertEquals("onEvent", report.methodName);
+        assertEquals(Integer.class, report.eventClass);
+        assertEquals("slow-handler", report.threadName);
+        assertTrue(report.elapsedMillis >= 200);
+        boolean awaiting = false;
+        for (StackTraceElement element : report.stackTrace) {
+            awaiting |= element.getClassName().equals(CountDownLatch.class.getName());
+        }
+        assertTrue(awaiting);
+
+        //the same invocation is reported once
+        mWatchdog.check(System.nanoTime() + 4 * THRESHOLD);
+        assertEquals(1, mReports.size());
+
+        release.countDown();
+        thread.join();
+        mWatchdog.check(System.nanoTime() + 4 * THRESHOLD);
+        assertEquals(1, mReports.size());
+        //dead thread's slot is dropped
+        assertTrue(mWatchdog.mSlots.isEmpty());
+    }
+}
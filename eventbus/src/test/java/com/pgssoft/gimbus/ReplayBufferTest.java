@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ReplayBuffer tests, on the plain JVM.
+ */
+public class ReplayBufferTest {
+
+    @Test
+    public void testOrderAndWrapAround() {
+        ReplayBuffer replayBuffer = new ReplayBuffer(3);
+        assertEquals(Collections.emptyList(), replayBuffer.snapshot());
+
+        replayBuffer.add(1);
+        replayBuffer.add(2);
+        assertEquals(Arrays.<Object>asList(1, 2), replayBuffer.snapshot());
+
+        for (int i = 3; i <= 10; i++) {
+            replayBuffer.add(i);
+        }
+        assertEquals(Arrays.<Object>asList(8, 9, 10), replayBuffer.snapshot());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new ReplayBuffer(0);
+    }
+
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        final int writers = 4;
+        final int perWriter = 100000;
+        final ReplayBuffer replayBuffer = new ReplayBuffer(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perWriter; i++) {
+                        replayBuffer.add(writer * perWriter + i);
+                    }
+                }
+            });
+            threads[w].start();
+        }
+        start.countDown();
+
+        //snapshots taken while writing hold no more than the capacity, and events of every writer in order
+        while (replayBuffer.mNext.get() < writers * perWriter) {
+            assertOrderedPerWriter(replayBuffer.snapshot(), writers, perWriter);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<Object> events = replayBuffer.snapshot();
+        assertEquals(64, events.size());
+        assertOrderedPerWriter(events, writers, perWriter);
+    }
+
+    @Test
+    public void testConcurrentAddAndSnapshot() throws InterruptedException {
+        final int writers = 4;
+        final int perWriter = 100000;
+        final int capacity = 16;
+        final ReplayBuffer replayBuffer = new ReplayBuffer(capacity);
+        //the sequence number of every event, each written by its writer only
+        final long[] sequences = new long[writers * perWriter];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perWriter; i++) {
+                        int value = writer * perWriter + i;
+                        sequences[value] = replayBuffer.add(value);
+                    }
+                }
+            });
+            threads[w].start();
+        }
+        start.countDown();
+
+        List<List<Object>> snapshots = new ArrayList<>();
+        while (replayBuffer.mNext.get() < writers * perWriter) {
+            snapshots.add(replayBuffer.snapshot());
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //every event is kept with its own sequence number, so every snapshot is in the order of the adds
+        for (List<Object> snapshot : snapshots) {
+            assertTrue(snapshot.size() <= capacity);
+            for (int i = 1; i < snapshot.size(); i++) {
+                assertTrue(sequences[(Integer) snapshot.get(i - 1)] < sequences[(Integer) snapshot.get(i)]);
+            }
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            ReplayBuffer.Entry entry = replayBuffer.mEntries.get(slot);
+            assertEquals(entry.mSequence, sequences[(Integer) entry.mEvent]);
+        }
+        //a slow writer does not overwrite a newer event, the last events are all there
+        List<Object> events = replayBuffer.snapshot();
+        assertEquals(capacity, events.size());
+        for (int i = 0; i < capacity; i++) {
+            assertEquals(writers * perWriter - capacity + i, sequences[(Integer) events.get(i)]);
+        }
+    }
+
+    static void assertOrderedPerWriter(List<Object> events, int writers, int perWriter) {
+        assertTrue(events.size() <= 64);
+        int[] last = new int[writers];
+        Arrays.fill(last, -1);
+        for (Object event : events) {
+            int value = (Integer) event;
+            int writer = value / perWriter;
+            assertTrue(value > last[writer]);
+            last[writer] = value;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RingDispatcher tests, on the plain JVM, with a consumer that records the events.
+ */
+public class RingDispatcherTest {
+
+    static class Recorder implements RingDispatcher.EventConsumer {
+
+        final List<Object> events = new ArrayList<>();
+        final CountDownLatch done;
+
+        Recorder(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void accept(Object event, Object attachment) {
+            //called in the consumer thread only, no synchronization needed until done
+            events.add(event);
+            done.countDown();
+        }
+    }
+
+    Thread start(RingDispatcher ringDispatcher) {
+        Thread thread = new Thread(ringDispatcher, "RingDispatcherTest");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSizeNotPowerOfTwo() {
+        new RingDispatcher(100, EventBus.WAIT_BLOCKING, new Recorder(0));
+    }
+
+    @Test
+    public void testSingleProducer() throws InterruptedException {
+        testSingleProducer(EventBus.WAIT_BLOCKING);
+        testSingleProducer(EventBus.WAIT_SLEEPING);
+        testSingleProducer(EventBus.WAIT_YIELDING);
+        testSingleProducer(EventBus.WAIT_BUSY_SPIN);
+    }
+
+    void testSingleProducer(@EventBus.WaitStrategy int waitStrategy) throws InterruptedException {
+        final int count = 100000;
+        Recorder recorder = new Recorder(count);
+        //a small ring, so it wraps many times, and the producer has to wait for the consumer
+        RingDispatcher ringDispatcher = new RingDispatcher(16, waitStrategy, recorder);
+        Thread thread = start(ringDispatcher);
+
+        for (int i = 0; i < count; i++) {
+            ringDispatcher.publish(i);
+        }
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, recorder.events.get(i));
+        }
+
+        ringDispatcher.halt();
+        thread.join(10000);
+        assertTrue(!thread.isAlive());
+    }
+
+    @Test
+    public void testMultipleProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50000;
+        Recorder recorder = new Recorder(producers * perProducer);
+        final RingDispatcher ringDispatcher = new RingDispatcher(64, EventBus.WAIT_BLOCKING, recorder);
+        start(ringDispatcher);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        ringDispatcher.publish(producer * perProducer + i);
+                    }
+                }
+            }).start();
+        }
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+
+        //every event once, the events of every producer in order
+        assertEquals(producers * perProducer, recorder.events.size());
+        int[] last = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            last[p] = -1;
+        }
+        for (Object event : recorder.events) {
+            int value = (Integer) event;
+            assertEquals(last[value / perProducer] + 1, value % perProducer);
+            last[value / perProducer] = value % perProducer;
+        }
+        ringDispatcher.halt();
+    }
+
+    @Test
+    public void testBlockedConsumerWakesUp() throws InterruptedException {
+        Recorder recorder = new Recorder(2);
+        RingDispatcher ringDispatcher = new RingDispatcher(4, EventBus.WAIT_BLOCKING, recorder);
+        start(ringDispatcher);
+
+        ringDispatcher.publish("first");
+        //give the consumer time to block
+        Thread.sleep(50);
+        ringDispatcher.publish("second");
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        assertEquals("second", recorder.events.get(1));
+        ringDispatcher.halt();
+    }
+
+    @Test
+    public void testConsumerSurvivesExceptions() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        RingDispatcher ringDispatcher = new RingDispatcher(4, EventBus.WAIT_BLOCKING, new RingDispatcher.EventConsumer() {
+            @Override
+            public void accept(Object event, Object attachment) {
+                if ("throw".equals(event)) {
+                    throw new IllegalStateException("Expected");
+                }
+                done.countDown();
+            }
+        });
+        start(ringDispatcher);
+
+        ringDispatcher.publish("throw");
+        ringDispatcher.publish("after");
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        ringDispatcher.halt();
+    }
+
+    @Test
+    public void testConsumerPublishesIntoFullRing() throws InterruptedException {
+        final int count = 100;
+        final List<Object> events = new ArrayList<>();
+        final List<Object> attachments = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(count + 1);
+        final RingDispatcher[] ring = new RingDispatcher[1];
+        ring[0] = new RingDispatcher(4, EventBus.WAIT_BLOCKING, new RingDispatcher.EventConsumer() {
+            @Override
+            public void accept(Object event, Object attachment) {
+                events.add(event);
+                attachments.add(attachment);
+                done.countDown();
+                if ("fan out".equals(event)) {
+                    //many more than the ring holds, the consumer must not wait for itself
+                    for (int i = 0; i < count; i++) {
+                        ring[0].publish(i, "attachment " + i);
+                    }
+                }
+            }
+        });
+        start(ring[0]);
+
+        ring[0].publish("fan out");
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("fan out", events.get(0));
+        assertEquals(null, attachments.get(0));
+        //the attachments stay with their events, in the ring and in the overflow queue
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, events.get(i + 1));
+            assertEquals("attachment " + i, attachments.get(i + 1));
+        }
+        assertTrue(ring[0].mOverflow.isEmpty());
+        ring[0].halt();
+    }
+}
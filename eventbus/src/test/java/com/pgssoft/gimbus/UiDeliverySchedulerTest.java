@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * UiDeliveryScheduler tests, on the plain JVM, with a manual clock and frames.
+ */
+public class UiDeliverySchedulerTest {
+
+    long mNow;
+    final List<Runnable> mFrames = new ArrayList<>();
+    final List<Integer> mDelivered = new ArrayList<>();
+    UiDeliveryScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new UiDeliveryScheduler(new UiDeliveryScheduler.FrameScheduler() {
+            @Override
+            public void scheduleFrame(Runnable frame) {
+                mFrames.add(frame);
+            }
+        }, new UiDeliveryScheduler.Clock() {
+            @Override
+            public long nanoTime() {
+                return mNow;
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(3));
+    }
+
+    void deliver(final int id, final long durationMillis) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDelivered.add(id);
+                mNow += TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            }
+        });
+    }
+
+    /**
+     * Runs the only scheduled frame.
+     */
+    void runFrame() {
+        assertEquals(1, mFrames.size());
+        mFrames.remove(0).run();
+    }
+
+    @Test
+    public void testBurstIsSplitIntoFrames() {
+        for (int i = 0; i < 10; i++) {
+            deliver(i, 1);
+        }
+        //one frame is scheduled, no matter how many events are queued
+        assertEquals(1, mFrames.size());
+        assertEquals(0, mDelivered.size());
+
+        runFrame();
+        assertEquals(3, mDelivered.size());
+        runFrame();
+        assertEquals(6, mDelivered.size());
+        runFrame();
+        assertEquals(9, mDelivered.size());
+        runFrame();
+        assertEquals(10, mDelivered.size());
+        assertEquals(0, mFrames.size());
+
+        //order is preserved
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (int) mDelivered.get(i));
+        }
+
+        UiDeliveryStatistics statistics = mScheduler.getStatistics();
+        assertEquals(10, statistics.deliveredCount);
+        assertEquals(4, statistics.frameCount);
+        assertEquals(3, statistics.deferredFrameCount);
+        assertEquals(7 + 4 + 1, statistics.deferredDeliveryCount);
+        assertEquals(0, statistics.pendingCount);
+    }
+
+    @Test
+    public void testAtLeastOneDeliveryPerFrame() {
+        deliver(0, 10);
+        deliver(1, 10);
+
+        runFrame();
+        assertEquals(1, mDelivered.size());
+        assertEquals(1, mScheduler.getStatistics().pendingCount);
+        runFrame();
+        assertEquals(2, mDelivered.size());
+        assertEquals(0, mFrames.size());
+    }
+
+    @Test
+    public void testEventsQueuedLaterScheduleNewFrame() {
+        deliver(0, 1);
+        runFrame();
+        assertEquals(0, mFrames.size());
+
+        deliver(1, 1);
+        runFrame();
+        assertEquals(2, mDelivered.size());
+        assertEquals(2, mScheduler.getStatistics().frameCount);
+        assertEquals(0, mScheduler.getStatistics().deferredFrameCount);
+    }
+
+    @Test
+    public void testEventsQueuedDuringFrame() {
+        //a handler posting another UI event, it is delivered in the same frame if it fits the budget
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDelivered.add(0);
+                deliver(1, 1);
+            }
+        });
+        runFrame();
+        assertEquals(2, mDelivered.size());
+        assertEquals(0, mFrames.size());
+    }
+}
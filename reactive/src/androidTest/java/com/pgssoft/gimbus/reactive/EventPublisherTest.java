@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus.reactive;
+
+import android.test.InstrumentationTestCase;
+
+import com.pgssoft.gimbus.EventBus;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EventPublisher tests, with the events sent in a bus.
+ */
+public class EventPublisherTest extends InstrumentationTestCase {
+
+    static class TestEvent {
+    }
+
+    static class TestSubEvent extends TestEvent {
+    }
+
+    public void testPublisher() {
+        EventBus eventBus = new EventBus();
+        final List<TestEvent> received = new ArrayList<>();
+        final Subscription[] subscriptions = new Subscription[1];
+        EventPublisher.create(eventBus, TestEvent.class, 2, EventPublisher.OVERFLOW_DROP_OLDEST).subscribe(new Subscriber<TestEvent>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscriptions[0] = subscription;
+            }
+
+            @Override
+            public void onNext(TestEvent event) {
+                received.add(event);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                fail();
+            }
+
+            @Override
+            public void onComplete() {
+                fail();
+            }
+        });
+
+        List<TestEvent> sent = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            TestEvent event = new TestSubEvent();
+            sent.add(event);
+            eventBus.send(event);
+        }
+        //nothing requested yet, the last 2 are buffered
+        assertEquals(0, received.size());
+        subscriptions[0].request(1);
+        assertEquals(sent.subList(2, 3), received);
+        subscriptions[0].request(5);
+        assertEquals(sent.subList(2, 4), received);
+
+        //requested, passed at once
+        TestEvent event = new TestEvent();
+        eventBus.send(event);
+        assertSame(event, received.get(2));
+
+        //cancelled, the bus subscription is closed
+        subscriptions[0].cancel();
+        assertTrue(((PublisherSubscription<?>) subscriptions[0]).mBusSubscription.isClosed());
+        eventBus.send(new TestEvent());
+        assertEquals(3, received.size());
+    }
+}
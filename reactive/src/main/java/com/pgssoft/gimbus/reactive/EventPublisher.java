@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus.reactive;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import com.pgssoft.gimbus.Consumer;
+import com.pgssoft.gimbus.EventBus;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * A reactive streams Publisher of the events of one class, and of its subclasses, for the reactive pipelines.
+ * <p/>
+ * Every Subscriber gets its own functional subscription in the bus, so the events are routed as usual,
+ * with its own bounded queue. Events are passed to the Subscriber only as requested with request(n),
+ * the rest waits in the queue, the events that do not fit are handled according to the overflow policy.
+ * onNext() is called in the dispatcher thread, or in the thread calling request(), never concurrently.
+ * The publisher never completes, the Subscriber gets events until it cancels.
+ * <p/>
+ * Usage:
+ * <pre>
+ * Publisher&lt;LocationUpdated&gt; publisher = EventPublisher.create(eventBus, LocationUpdated.class, 64,
+ *         EventPublisher.OVERFLOW_DROP_OLDEST);
+ * </pre>
+ */
+public final class EventPublisher<T> implements Publisher<T> {
+
+    /**
+     * The publisher drops the new event, when the subscriber's buffer is full.
+     */
+    public static final int OVERFLOW_DROP_LATEST = 0;
+
+    /**
+     * The publisher drops the oldest buffered event, to make room for the new one, when the subscriber's buffer is full.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    /**
+     * The publisher signals onError() and ends the subscription, when the subscriber's buffer is full.
+     */
+    public static final int OVERFLOW_ERROR = 2;
+
+    @IntDef({OVERFLOW_DROP_LATEST, OVERFLOW_DROP_OLDEST, OVERFLOW_ERROR})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OverflowPolicy {
+    }
+
+    static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /**
+     * Same as {@link #create(EventBus, Class, int, int)}, buffers 256 events per subscriber, and drops the oldest ones.
+     */
+    @NonNull
+    public static <T> EventPublisher<T> create(@NonNull EventBus eventBus, @NonNull Class<T> eventClass) {
+        return new EventPublisher<>(eventBus, eventClass, DEFAULT_BUFFER_SIZE, OVERFLOW_DROP_OLDEST);
+    }
+
+    /**
+     * Returns a Publisher of the events of given class, and of its subclasses, sent in the bus.
+     *
+     * @param bufferSize     number of events buffered per Subscriber.
+     * @param overflowPolicy what to do with the events that do not fit the buffer, see OVERFLOW_DROP_LATEST.
+     */
+    @NonNull
+    public static <T> EventPublisher<T> create(@NonNull EventBus eventBus, @NonNull Class<T> eventClass, int bufferSize,
+                                               @OverflowPolicy int overflowPolicy) {
+        return new EventPublisher<>(eventBus, eventClass, bufferSize, overflowPolicy);
+    }
+
+    @NonNull
+    final EventBus mEventBus;
+
+    @NonNull
+    final Class<T> mEventClass;
+
+    final int mBufferSize;
+
+    @OverflowPolicy
+    final int mOverflowPolicy;
+
+    EventPublisher(@NonNull EventBus eventBus, @NonNull Class<T> eventClass, int bufferSize,
+                   @OverflowPolicy int overflowPolicy) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        mEventBus = eventBus;
+        mEventClass = eventClass;
+        mBufferSize = bufferSize;
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            //reactive streams rule 1.9
+            throw new NullPointerException("Subscriber is null");
+        }
+        final PublisherSubscription<T> subscription = new PublisherSubscription<>(subscriber, mBufferSize, mOverflowPolicy);
+        subscriber.onSubscribe(subscription);
+        //queued in the dispatcher thread, so the events are queued in the dispatch order
+        subscription.mBusSubscription = mEventBus.subscribe(mEventClass, EventBus.DELIVER_IN_DISPATCHER_THREAD, new Consumer<T>() {
+            @Override
+            public void accept(@NonNull T event) {
+                subscription.onEvent(event);
+            }
+        });
+        //cancelled, or failed, in onSubscribe(), before the bus subscription was set
+        if (subscription.mCancelled || subscription.mError != null) {
+            subscription.closeBusSubscription();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+
+package com.pgssoft.gimbus.reactive;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.pgssoft.gimbus.Subscription;
+
+import org.reactivestreams.Subscriber;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The reactive streams Subscription of one Subscriber of the {@link EventPublisher}.
+ * <p/>
+ * Events are queued in a bounded queue, and passed to the Subscriber as long as it requested them.
+ * Events over the queue capacity are handled according to the overflow policy. All signals to the
+ * Subscriber are serialized by the drain loop: whichever thread queues an event, or requests more,
+ * drains the queue, other threads only mark that there is more work.
+ * <p/>
+ * Note: package access, the class is for internal use only.
+ */
+/*package*/ final class PublisherSubscription<T> implements org.reactivestreams.Subscription {
+
+    @NonNull
+    final Subscriber<? super T> mSubscriber;
+
+    @EventPublisher.OverflowPolicy
+    final int mOverflowPolicy;
+
+    final ArrayBlockingQueue<T> mQueue;
+
+    /**
+     * Outstanding demand, Long.MAX_VALUE means unbounded.
+     */
+    final AtomicLong mRequested = new AtomicLong();
+
+    /**
+     * Work in progress counter of the drain loop.
+     */
+    final AtomicInteger mWip = new AtomicInteger();
+
+    final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * The bus subscription feeding the queue, set once subscribed.
+     */
+    @Nullable
+    volatile Subscription mBusSubscription;
+
+    volatile boolean mCancelled = false;
+
+    /**
+     * The error to signal, set once, signalled by the drain loop.
+     */
+    @Nullable
+    volatile Throwable mError;
+
+    PublisherSubscription(@NonNull Subscriber<? super T> subscriber, int bufferSize, @EventPublisher.OverflowPolicy int overflowPolicy) {
+        mSubscriber = subscriber;
+        mOverflowPolicy = overflowPolicy;
+        mQueue = new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    /**
+     * Queues the event, called by the bus, in the dispatcher thread.
+     */
+    void onEvent(@NonNull T event) {
+        if (mCancelled) {
+            return;
+        }
+        if (!mQueue.offer(event)) {
+            switch (mOverflowPolicy) {
+                case EventPublisher.OVERFLOW_DROP_OLDEST:
+                    //the queue is used by one draining thread, and by many dispatching threads
+                    synchronized (mQueue) {
+                        while (!mQueue.offer(event)) {
+                            if (mQueue.poll() != null) {
+                                mDropped.incrementAndGet();
+                            }
+                        }
+                    }
+                    break;
+                case EventPublisher.OVERFLOW_ERROR:
+                    fail(new IllegalStateException("Buffer overflow, the subscriber requests less than the bus publishes"));
+                    break;
+                default:
+                    mDropped.incrementAndGet();
+                    break;
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            //reactive streams rule 3.9
+            fail(new IllegalArgumentException("Requested " + n + ", have to be positive"));
+            return;
+        }
+        for (; ; ) {
+            final long current = mRequested.get();
+            final long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (current == Long.MAX_VALUE || mRequested.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (!mCancelled) {
+            mCancelled = true;
+            closeBusSubscription();
+            drain();
+        }
+    }
+
+    void fail(@NonNull Throwable error) {
+        if (mError == null) {
+            mError = error;
+            closeBusSubscription();
+            drain();
+        }
+    }
+
+    void closeBusSubscription() {
+        Subscription busSubscription = mBusSubscription;
+        if (busSubscription != null) {
+            busSubscription.close();
+        }
+    }
+
+    void drain() {
+        if (mWip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (; ; ) {
+            final long requested = mRequested.get();
+            long emitted = 0;
+            while (emitted != requested && !mCancelled && mError == null) {
+                final T event = mQueue.poll();
+                if (event == null) {
+                    break;
+                }
+                mSubscriber.onNext(event);
+                emitted++;
+            }
+            if (mCancelled) {
+                mQueue.clear();
+            } else if (mError != null) {
+                mCancelled = true;
+                mQueue.clear();
+                mSubscriber.onError(mError);
+            } else if (emitted != 0 && requested != Long.MAX_VALUE) {
+                mRequested.addAndGet(-emitted);
+            }
+            missed = mWip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 PGS Software SA
+ *
+ * This software may be modified and distributed under the terms
+ * of the MIT license.  See the LICENSE file for details.
+ *
+ */
+package com.pgssoft.gimbus.reactive;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PublisherSubscription tests, on the plain JVM, with the events queued directly, as the bus would.
+ */
+public class PublisherSubscriptionTest {
+
+    static class TestSubscriber implements Subscriber<Integer> {
+
+        final List<Integer> events = new ArrayList<>();
+        org.reactivestreams.Subscription subscription;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(org.reactivestreams.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            assertNull(this.error);
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            throw new AssertionError("The bus never completes");
+        }
+    }
+
+    PublisherSubscription<Integer> subscribe(TestSubscriber subscriber, int bufferSize, @EventPublisher.OverflowPolicy int overflowPolicy) {
+        PublisherSubscription<Integer> subscription = new PublisherSubscription<>(subscriber, bufferSize, overflowPolicy);
+        subscriber.onSubscribe(subscription);
+        return subscription;
+    }
+
+    @Test
+    public void testDemand() {
+        TestSubscriber subscriber = new TestSubscriber();
+        PublisherSubscription<Integer> subscription = subscribe(subscriber, 16, EventPublisher.OVERFLOW_ERROR);
+
+        //nothing requested, everything is buffered
+        for (int i = 0; i < 5; i++) {
+            subscription.onEvent(i);
+        }
+        assertEquals(0, subscriber.events.size());
+
+        subscriber.subscription.request(2);
+        assertEquals(Arrays.asList(0, 1), subscriber.events);
+
+        subscriber.subscription.request(10);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), subscriber.events);
+
+        //7 requested still, passed as they come
+        subscription.onEvent(5);
+        assertEquals(6, subscriber.events.size());
+        assertEquals(6, subscription.mRequested.get());
+
+        //unbounded demand
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, subscription.mRequested.get());
+        for (int i = 6; i < 100; i++) {
+            subscription.onEvent(i);
+        }
+        assertEquals(100, subscriber.events.size());
+        assertEquals(Long.MAX_VALUE, subscription.mRequested.get());
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testOverflowDropLatest() {
+        TestSubscriber subscriber = new TestSubscriber();
+        PublisherSubscription<Integer> subscription = subscribe(subscriber, 3, EventPublisher.OVERFLOW_DROP_LATEST);
+        for (int i = 0; i < 5; i++) {
+            subscription.onEvent(i);
+        }
+        subscriber.subscription.request(10);
+        assertEquals(Arrays.asList(0, 1, 2), subscriber.events);
+        assertEquals(2, subscription.mDropped.get());
+    }
+
+    @Test
+    public void testOverflowDropOldest() {
+        TestSubscriber subscriber = new TestSubscriber();
+        PublisherSubscription<Integer> subscription = subscribe(subscriber, 3, EventPublisher.OVERFLOW_DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            subscription.onEvent(i);
+        }
+        subscriber.subscription.request(10);
+        assertEquals(Arrays.asList(2, 3, 4), subscriber.events);
+        assertEquals(2, subscription.mDropped.get());
+    }
+
+    @Test
+    public void testOverflowError() {
+        TestSubscriber subscriber = new TestSubscriber();
+        PublisherSubscription<Integer> subscription = subscribe(subscriber, 3, EventPublisher.OVERFLOW_ERROR);
+        for (int i = 0; i < 5; i++) {
+            subscription.onEvent(i);
+        }
+        //the error is signalled at once, the buffered events are dropped
+        assertTrue(subscriber.error instanceof IllegalStateException);
+        subscriber.subscription.request(10);
+        subscription.onEvent(5);
+        assertEquals(0, subscriber.events.size());
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        TestSubscriber subscriber = new TestSubscriber();
+        subscribe(subscriber, 3, EventPublisher.OVERFLOW_ERROR);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testCancel() {
+        TestSubscriber subscriber = new TestSubscriber();
+        PublisherSubscription<Integer> subscription = subscribe(subscriber, 3, EventPublisher.OVERFLOW_ERROR);
+        subscription.onEvent(0);
+        subscriber.subscription.cancel();
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(10);
+        subscription.onEvent(1);
+        assertEquals(0, subscriber.events.size());
+        assertEquals(0, subscription.mQueue.size());
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testReentrantRequest() {
+        //a subscriber requesting the next event from onNext(), the events are passed in a loop, not recursively
+        TestSubscriber subscriber = new TestSubscriber() {
+            @Override
+            public void onNext(Integer event) {
+                super.onNext(event);
+                subscription.request(1);
+            }
+        };
+        PublisherSubscription<Integer> subscription = subscribe(subscriber, 16, EventPublisher.OVERFLOW_ERROR);
+        for (int i = 0; i < 10; i++) {
+            subscription.onEvent(i);
+        }
+        subscriber.subscription.request(1);
+        assertEquals(10, subscriber.events.size());
+        assertEquals(1, subscription.mRequested.get());
+    }
+}